@@ -0,0 +1,54 @@
+package ch.digitalfondue.synckv;
+
+/**
+ * Statistics of the value compression of a table, since the table has been opened. See
+ * {@link SyncKVTable#enableCompression(String, int)}.
+ */
+public final class CompressionStats {
+
+    private final long encodedValueCount;
+    private final long plainValueCount;
+    private final long originalBytes;
+    private final long storedBytes;
+
+    CompressionStats(long encodedValueCount, long plainValueCount, long originalBytes, long storedBytes) {
+        this.encodedValueCount = encodedValueCount;
+        this.plainValueCount = plainValueCount;
+        this.originalBytes = originalBytes;
+        this.storedBytes = storedBytes;
+    }
+
+    /**
+     * @return the count of the written values that are stored compressed
+     */
+    public long getEncodedValueCount() {
+        return encodedValueCount;
+    }
+
+    /**
+     * @return the count of the written values that are stored as they are: below the threshold or not compressible
+     */
+    public long getPlainValueCount() {
+        return plainValueCount;
+    }
+
+    public long getOriginalBytes() {
+        return originalBytes;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * @return original size / stored size
+     */
+    public double getRatio() {
+        return storedBytes == 0 ? 1 : (double) originalBytes / storedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompressionStats{encoded: %d, plain: %d, original: %d bytes, stored: %d bytes, ratio: %.2f}", encodedValueCount, plainValueCount, originalBytes, storedBytes, getRatio());
+    }
+}
@@ -0,0 +1,68 @@
+package ch.digitalfondue.synckv;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Internal use.
+ * Built in {@link ValueCodec}, based on {@link Deflater}.
+ */
+class DeflateValueCodec implements ValueCodec {
+
+    static final int ID = 1;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] encode(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] encoded, int offset, int length, int decodedLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, offset, length);
+            byte[] res = new byte[decodedLength];
+            int position = 0;
+            while (position < decodedLength && !inflater.finished()) {
+                int count = inflater.inflate(res, position, decodedLength - position);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += count;
+            }
+            if (position != decodedLength) {
+                throw new IllegalStateException("corrupted value: expected " + decodedLength + " bytes, got " + position);
+            }
+            return res;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
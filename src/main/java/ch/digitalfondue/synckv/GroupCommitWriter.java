@@ -0,0 +1,144 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVStore;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal use.
+ * Single writer thread that apply the queued writes in batch and commit them once per batch.
+ */
+class GroupCommitWriter implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(GroupCommitWriter.class.getName());
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    GroupCommitWriter(int maxBatchSize, long maxLatency, TimeUnit unit) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+        this.writerThread = new Thread(this::run, "synckv-group-commit");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @param table
+     * @param kvs
+     * @return completed once the batch containing the write has been committed, with false if a newer version of one
+     * of the keys was already present. If the writer has been closed in the meantime (group commit disabled or
+     * reconfigured), the write is applied and committed directly by the caller.
+     */
+    CompletableFuture<Boolean> submit(SyncKVTable table, List<KV> kvs) {
+        PendingWrite write = new PendingWrite(table, kvs);
+        synchronized (this) {
+            if (running) {
+                queue.add(write);
+                return write.done;
+            }
+        }
+        applyAndCommit(Collections.singletonList(write));
+        return write.done;
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                int size = first.kvs.size();
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (size < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    size += next.kvs.size();
+                }
+                applyAndCommit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // a failure is reported only to the writes concerned: a write that fails to be applied does not prevent the
+    // others of the batch from being committed, and a commit failure concerns only the writes of its store
+    private static void applyAndCommit(List<PendingWrite> batch) {
+        Map<MVStore, List<PendingWrite>> byStore = new IdentityHashMap<>();
+        for (PendingWrite write : batch) {
+            try {
+                for (KV kv : write.kvs) {
+                    write.added &= write.table.addRawKV(kv.k, kv.v);
+                }
+                byStore.computeIfAbsent(write.table.getStore(), s -> new ArrayList<>()).add(write);
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error while applying a write of a group commit batch", t);
+                write.done.completeExceptionally(t);
+            }
+        }
+        byStore.forEach((store, writes) -> {
+            try {
+                Set<SyncKVTable> tables = Collections.newSetFromMap(new IdentityHashMap<>());
+                writes.forEach(w -> tables.add(w.table));
+                tables.forEach(SyncKVTable::flushAggregates);
+                store.commit();
+                writes.forEach(w -> w.done.complete(w.added));
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error while committing a group commit batch", t);
+                writes.forEach(w -> w.done.completeExceptionally(t));
+            }
+        });
+        LOGGER.log(Level.FINEST, () -> "group commit of " + batch.size() + " writes");
+    }
+
+    /**
+     * Stop accepting new writes, wait until the pending ones are committed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingWrite {
+        final SyncKVTable table;
+        final List<KV> kvs;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        // false if a newer version of one of the keys was already present
+        boolean added = true;
+
+        PendingWrite(SyncKVTable table, List<KV> kvs) {
+            this.table = table;
+            this.kvs = kvs;
+        }
+    }
+}
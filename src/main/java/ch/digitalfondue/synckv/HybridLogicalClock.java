@@ -0,0 +1,84 @@
+package ch.digitalfondue.synckv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal use.
+ * Hybrid logical clock used for versioning the keys: a timestamp is composed of the physical time in milliseconds
+ * (high 48 bits) and of a logical counter (low 16 bits).
+ *
+ * The clock never goes backward and is advanced past the timestamps received from the other nodes: a version written
+ * after having seen another one is always newer, even if the physical clocks of the two nodes are skewed.
+ * Two nodes may generate the same timestamp, the node id is used as a tie breaker.
+ */
+final class HybridLogicalClock {
+
+    private final static Logger LOGGER = Logger.getLogger(HybridLogicalClock.class.getName());
+
+    // a remote timestamp too far in the future is not followed, as it would drag the clock of the whole cluster
+    private static final long MAX_OFFSET_MILLIS = 60_000;
+
+    private final int nodeId;
+    private final AtomicLong state = new AtomicLong();
+
+    HybridLogicalClock(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    int getNodeId() {
+        return nodeId;
+    }
+
+    long now() {
+        return nowAfter(Long.MIN_VALUE);
+    }
+
+    /**
+     * A timestamp newer than the current time and than the given timestamp. Used for a local write, with the latest
+     * stored version of the key: the clock is only kept in memory, after a restart or a step back of the physical
+     * clock it can be behind the versions already written.
+     */
+    long nowAfter(long timestamp) {
+        long physical = timestamp(System.currentTimeMillis(), 0);
+        while (true) {
+            long current = state.get();
+            long last = Math.max(current, timestamp);
+            // an overflow of the counter will move the physical part by one millisecond
+            long next = physical > last ? physical : last + 1;
+            if (state.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Advance the clock past a timestamp received from another node.
+     *
+     * @return false if the timestamp is too far in the future: the clock is not advanced, the version must be refused
+     * as it would win over all the local writes of the key until the physical time catches up
+     */
+    boolean observe(long remoteTimestamp) {
+        if (physicalTime(remoteTimestamp) - System.currentTimeMillis() > MAX_OFFSET_MILLIS) {
+            LOGGER.log(Level.WARNING, () -> "refused a timestamp " + (physicalTime(remoteTimestamp) - System.currentTimeMillis()) + "ms in the future, check the clock of the other nodes");
+            return false;
+        }
+        long current = state.get();
+        while (remoteTimestamp > current) {
+            if (state.compareAndSet(current, remoteTimestamp)) {
+                return true;
+            }
+            current = state.get();
+        }
+        return true;
+    }
+
+    static long timestamp(long physicalTime, int counter) {
+        return (physicalTime << 16) | (counter & 0xffff);
+    }
+
+    static long physicalTime(long timestamp) {
+        return timestamp >>> 16;
+    }
+}
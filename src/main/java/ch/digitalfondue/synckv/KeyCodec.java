@@ -0,0 +1,330 @@
+package ch.digitalfondue.synckv;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Internal use.
+ * Encoding and comparison of the versioned keys, working directly on the arrays without allocation.
+ *
+ * A versioned key is structured as:
+ * + is = concatenation
+ *
+ * 0xFF+key.bytes+timestamp+nodeId (current format, see {@link HybridLogicalClock})
+ * 0xFE+key.bytes+timestamp+nodeId (current format, the value is encoded, see {@link ValueCodec})
+ * key.bytes+currentTime+nanoTime+seed (legacy format)
+ *
+ * 0xFF and 0xFE are never present in an utf-8 encoded string, and a legacy key with an empty logical key starts with
+ * the high byte of a positive currentTime: the formats can be stored side by side.
+ *
+ * The versions of a logical key are ordered by physical time, then by the logical counter and the node id.
+ * At the same millisecond, a legacy version is older than a version in the current format.
+ */
+final class KeyCodec {
+
+    static final byte FORMAT_HLC = (byte) 0xFF;
+    static final byte FORMAT_HLC_ENCODED_VALUE = (byte) 0xFE;
+
+    // hybrid logical clock timestamp (6 bytes physical time + 2 bytes counter) and node id
+    static final int HLC_METADATA_LENGTH = Long.BYTES + Integer.BYTES;
+
+    //currentTimeInMilli and nanoTime and random.nextInt
+    static final int LEGACY_METADATA_LENGTH = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final byte[] FLOOR_METADATA = new byte[LEGACY_METADATA_LENGTH]; //<- filled with -128
+    private static final byte[] CEIL_METADATA = new byte[LEGACY_METADATA_LENGTH]; //<- filled with 127
+
+    static {
+        Arrays.fill(FLOOR_METADATA, Byte.MIN_VALUE);
+        Arrays.fill(CEIL_METADATA, Byte.MAX_VALUE);
+    }
+
+    private static final ThreadLocal<KeySlice> SCRATCH = ThreadLocal.withInitial(KeySlice::new);
+
+    private KeyCodec() {
+    }
+
+    static byte[] encode(String key, long timestamp, int nodeId) {
+        return encode(key, timestamp, nodeId, false);
+    }
+
+    static byte[] encode(String key, long timestamp, int nodeId, boolean encodedValue) {
+        int length = utf8Length(key);
+        byte[] res = new byte[1 + length + HLC_METADATA_LENGTH];
+        res[0] = encodedValue ? FORMAT_HLC_ENCODED_VALUE : FORMAT_HLC;
+        encodeUtf8(key, res, 1);
+        putLong(res, 1 + length, timestamp);
+        putInt(res, 1 + length + Long.BYTES, nodeId);
+        return res;
+    }
+
+    /**
+     * Encode a version in the current format, from the physical time and the logical counter.
+     */
+    static byte[] encode(String key, long physicalTime, int counter, int nodeId) {
+        return encode(key, HybridLogicalClock.timestamp(physicalTime, counter), nodeId);
+    }
+
+    static byte[] encodeLegacy(String key, long currentTime, long nanoTime, int seed) {
+        int length = utf8Length(key);
+        byte[] res = new byte[length + LEGACY_METADATA_LENGTH];
+        encodeUtf8(key, res, 0);
+        putLong(res, length, currentTime);
+        putLong(res, length + Long.BYTES, nanoTime);
+        putInt(res, length + Long.BYTES + Long.BYTES, seed);
+        return res;
+    }
+
+    static boolean isHlc(byte[] rawKey) {
+        return rawKey.length > 0 && (rawKey[0] == FORMAT_HLC || rawKey[0] == FORMAT_HLC_ENCODED_VALUE);
+    }
+
+    /**
+     * @return true if the value of this version has been encoded, see {@link ValueCodecs#decode(byte[])}
+     */
+    static boolean hasEncodedValue(byte[] rawKey) {
+        return rawKey.length > 0 && rawKey[0] == FORMAT_HLC_ENCODED_VALUE;
+    }
+
+    static int logicalOffset(byte[] rawKey) {
+        return isHlc(rawKey) ? 1 : 0;
+    }
+
+    static int logicalLength(byte[] rawKey) {
+        return isHlc(rawKey) ? rawKey.length - 1 - HLC_METADATA_LENGTH : rawKey.length - LEGACY_METADATA_LENGTH;
+    }
+
+    static byte[] logicalKey(byte[] rawKey) {
+        int offset = logicalOffset(rawKey);
+        return Arrays.copyOfRange(rawKey, offset, offset + logicalLength(rawKey));
+    }
+
+    static String logicalKeyString(byte[] rawKey) {
+        return new String(rawKey, logicalOffset(rawKey), logicalLength(rawKey), StandardCharsets.UTF_8);
+    }
+
+    static boolean logicalKeyStartsWith(byte[] rawKey, byte[] prefix) {
+        int offset = logicalOffset(rawKey);
+        if (logicalLength(rawKey) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (rawKey[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the physical time of the version, in milliseconds
+     */
+    static long physicalTime(byte[] rawKey) {
+        return isHlc(rawKey) ? HybridLogicalClock.physicalTime(hlcTimestamp(rawKey)) : getLong(rawKey, logicalLength(rawKey));
+    }
+
+    /**
+     * @return the hybrid logical clock timestamp of a key in the current format
+     */
+    static long hlcTimestamp(byte[] rawKey) {
+        return getLong(rawKey, rawKey.length - HLC_METADATA_LENGTH);
+    }
+
+    /**
+     * A key lower than all the versions of the given logical key, in both formats.
+     */
+    static byte[] floorKey(byte[] logicalKey) {
+        return withLegacyMetadata(logicalKey, FLOOR_METADATA);
+    }
+
+    /**
+     * A key greater than all the versions of the given logical key, in both formats.
+     */
+    static byte[] ceilKey(byte[] logicalKey) {
+        return withLegacyMetadata(logicalKey, CEIL_METADATA);
+    }
+
+    private static byte[] withLegacyMetadata(byte[] logicalKey, byte[] metadata) {
+        byte[] res = Arrays.copyOf(logicalKey, logicalKey.length + LEGACY_METADATA_LENGTH);
+        System.arraycopy(metadata, 0, res, logicalKey.length, LEGACY_METADATA_LENGTH);
+        return res;
+    }
+
+    static boolean sameLogicalKey(byte[] a, byte[] b) {
+        int lengthA = logicalLength(a);
+        if (lengthA != logicalLength(b)) {
+            return false;
+        }
+        int offsetA = logicalOffset(a);
+        int offsetB = logicalOffset(b);
+        for (int i = 0; i < lengthA; i++) {
+            if (a[offsetA + i] != b[offsetB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        boolean hlcA = isHlc(a);
+        boolean hlcB = isHlc(b);
+        int offsetA = hlcA ? 1 : 0;
+        int offsetB = hlcB ? 1 : 0;
+        int lengthA = logicalLength(a);
+        int lengthB = logicalLength(b);
+        int comparison = compareBytes(a, offsetA, lengthA, b, offsetB, lengthB);
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        int metadataA = offsetA + lengthA;
+        int metadataB = offsetB + lengthB;
+        long timestampA = getLong(a, metadataA);
+        long timestampB = getLong(b, metadataB);
+
+        if (hlcA && hlcB) {
+            comparison = Long.compare(timestampA, timestampB);
+            return comparison != 0 ? comparison : Integer.compare(getInt(a, metadataA + Long.BYTES), getInt(b, metadataB + Long.BYTES));
+        }
+
+        if (hlcA != hlcB) {
+            comparison = Long.compare(hlcA ? HybridLogicalClock.physicalTime(timestampA) : timestampA, hlcB ? HybridLogicalClock.physicalTime(timestampB) : timestampB);
+            return comparison != 0 ? comparison : (hlcA ? 1 : -1);
+        }
+
+        comparison = Long.compare(timestampA, timestampB);
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        comparison = Long.compare(getLong(a, metadataA + Long.BYTES), getLong(b, metadataB + Long.BYTES));
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        return Integer.compare(getInt(a, metadataA + Long.BYTES + Long.BYTES), getInt(b, metadataB + Long.BYTES + Long.BYTES));
+    }
+
+    static int compareBytes(byte[] a, int lengthA, byte[] b, int lengthB) {
+        return compareBytes(a, 0, lengthA, b, 0, lengthB);
+    }
+
+    // same ordering as ByteBuffer.compareTo: signed bytes, then the shortest first
+    static int compareBytes(byte[] a, int offsetA, int lengthA, byte[] b, int offsetB, int lengthB) {
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int comparison = Byte.compare(a[offsetA + i], b[offsetB + i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Thread local view over the logical part of the given versioned key, to be used as a seek key in the maps keyed
+     * by logical key. The returned instance is reused by the next call in the same thread.
+     */
+    static KeySlice logicalKeySlice(byte[] rawKey) {
+        KeySlice slice = SCRATCH.get();
+        slice.array = rawKey;
+        slice.offset = logicalOffset(rawKey);
+        slice.length = logicalLength(rawKey);
+        return slice;
+    }
+
+    /**
+     * Thread local view over the utf-8 encoded key. The returned instance is reused by the next call in the same thread.
+     */
+    static KeySlice logicalKeySlice(String key) {
+        KeySlice slice = SCRATCH.get();
+        int length = utf8Length(key);
+        if (slice.buffer.length < length) {
+            slice.buffer = new byte[Math.max(length, slice.buffer.length * 2)];
+        }
+        encodeUtf8(key, slice.buffer, 0);
+        slice.array = slice.buffer;
+        slice.offset = 0;
+        slice.length = length;
+        return slice;
+    }
+
+    /**
+     * A mutable (array, offset, length) view, see {@link #logicalKeySlice(byte[])}.
+     */
+    static final class KeySlice {
+        private byte[] buffer = new byte[64];
+        byte[] array;
+        int offset;
+        int length;
+    }
+
+    // same output as String.getBytes(StandardCharsets.UTF_8), unpaired surrogates are replaced by '?'
+    static int utf8Length(String s) {
+        int length = 0;
+        int size = s.length();
+        for (int i = 0; i < size; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int encodeUtf8(String s, byte[] dst, int offset) {
+        int pos = offset;
+        int size = s.length();
+        for (int i = 0; i < size; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xc0 | (c >> 6));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[pos++] = (byte) (0xf0 | (cp >> 18));
+                dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                dst[pos++] = '?';
+            } else {
+                dst[pos++] = (byte) (0xe0 | (c >> 12));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos - offset;
+    }
+
+    static long getLong(byte[] b, int offset) {
+        return ((long) getInt(b, offset) << 32) | (getInt(b, offset + Integer.BYTES) & 0xffffffffL);
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    static void putLong(byte[] b, int offset, long value) {
+        putInt(b, offset, (int) (value >>> 32));
+        putInt(b, offset + Integer.BYTES, (int) value);
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
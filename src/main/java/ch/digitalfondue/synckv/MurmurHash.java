@@ -45,6 +45,11 @@ class MurmurHash {
         return hash(bytes, bytes.length, initval);
     }
 
+    // 64 bit hash built from two 32 bit hashes with different seeds
+    static long hash64(byte[] bytes) {
+        return ((long) hash(bytes, bytes.length, -1) << 32) | (hash(bytes, bytes.length, 0x9747b28c) & 0xffffffffL);
+    }
+
 
     private static int hash(byte[] data, int length, int seed) {
         int m = 0x5bd1e995;
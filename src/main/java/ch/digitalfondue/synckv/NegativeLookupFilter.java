@@ -0,0 +1,152 @@
+package ch.digitalfondue.synckv;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Internal use.
+ * Allow to answer "absent" for a key without asking the other members of the cluster.
+ *
+ * It's composed of:
+ * <ul>
+ * <li>a bloom filter of the keys present in the cluster: it contains the local keys, and the filters received from
+ * the other members during the synchronization. As the filters are merged, the members that contributed to it are
+ * tracked: the filter is used only when all the current members of the cluster have contributed to it in the
+ * current view.</li>
+ * <li>a short lived cache of the keys that have been reported as absent by the other members.</li>
+ * </ul>
+ * As there is no delete operation, a bloom filter is never wrong about a key being absent at the time it was built.
+ * The keys added afterwards on the other members are received through the replication.
+ */
+class NegativeLookupFilter {
+
+    private static final int MAX_NEGATIVE_CACHE_SIZE = 10_000;
+
+    private final int numBits;
+    private final int numHashes;
+    private final long[] bits;
+    private final Set<String> contributors = new HashSet<>();
+    private String contributorsViewId;
+    private final long negativeCacheTtlNanos;
+    // access ordered, bounded
+    private final LinkedHashMap<String, Long> negativeCache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_NEGATIVE_CACHE_SIZE;
+        }
+    };
+
+    NegativeLookupFilter(int expectedKeys, double falsePositiveRate, long negativeCacheTtlNanos) {
+        if (expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("expectedKeys must be positive and falsePositiveRate must be between 0 and 1");
+        }
+        // classic bloom filter sizing
+        long m = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * Math.log(2)));
+        this.bits = new long[(numBits + 63) / 64];
+        this.negativeCacheTtlNanos = negativeCacheTtlNanos;
+    }
+
+    synchronized void add(byte[] rawKey) {
+        long hash = MurmurHash.hash64(KeyCodec.logicalKey(rawKey));
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.abs((h1 + i * h2) % numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        negativeCache.remove(KeyCodec.logicalKeyString(rawKey));
+    }
+
+    private boolean mightContain(byte[] logicalKey) {
+        long hash = MurmurHash.hash64(logicalKey);
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = Math.abs((h1 + i * h2) % numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key the key that is not present locally
+     * @param members the current members of the cluster, except the local one
+     * @param viewId the current view
+     * @return true if the key is known to be absent in the whole cluster
+     */
+    synchronized boolean isKnownAbsent(String key, Collection<String> members, String viewId) {
+        resetContributorsOnViewChange(viewId);
+        Long expiration = negativeCache.get(key);
+        if (expiration != null) {
+            if (expiration - System.nanoTime() > 0) {
+                return true;
+            }
+            negativeCache.remove(key);
+        }
+        return contributors.containsAll(members) && !mightContain(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    synchronized void markAbsent(String key) {
+        if (negativeCacheTtlNanos > 0) {
+            negativeCache.put(key, System.nanoTime() + negativeCacheTtlNanos);
+        }
+    }
+
+    // a member may have missed some replicated writes (e.g. after a network partition), the contributions must be
+    // collected again in the new view. The bits are kept, they can only contain too much keys.
+    private void resetContributorsOnViewChange(String viewId) {
+        if (!Objects.equals(viewId, contributorsViewId)) {
+            contributors.clear();
+            contributorsViewId = viewId;
+        }
+    }
+
+    synchronized Export export(String localMember, String viewId) {
+        resetContributorsOnViewChange(viewId);
+        Set<String> exportedContributors = new HashSet<>(contributors);
+        exportedContributors.add(localMember);
+        return new Export(numBits, numHashes, bits.clone(), exportedContributors, viewId);
+    }
+
+    /**
+     * Merge a filter received from another member, ignored if it has been built with different parameters.
+     */
+    synchronized boolean merge(Export remote, String viewId) {
+        if (remote == null || remote.numBits != numBits || remote.numHashes != numHashes || remote.bits.length != bits.length) {
+            return false;
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] |= remote.bits[i];
+        }
+        resetContributorsOnViewChange(viewId);
+        if (viewId.equals(remote.viewId)) {
+            contributors.addAll(remote.contributors);
+        }
+        return true;
+    }
+
+    static class Export implements Serializable {
+
+        // bump on each change of the fields, they are part of the wire format
+        private static final long serialVersionUID = 1L;
+
+        final int numBits;
+        final int numHashes;
+        final long[] bits;
+        final Set<String> contributors;
+        final String viewId;
+
+        Export(int numBits, int numHashes, long[] bits, Set<String> contributors, String viewId) {
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.bits = bits;
+            this.contributors = contributors;
+            this.viewId = viewId;
+        }
+    }
+}
@@ -1,7 +1,18 @@
 package ch.digitalfondue.synckv;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remove the old versions of the keys that have been overwritten since the last run, see
+ * {@link SyncKVTable#compactOldVersions(int)}, and the expired keys, see {@link SyncKVTable#reapExpired(int)}.
+ * The work is done in small batches with a pause between them, so the writers are not blocked for a long time and
+ * the commits are spread.
+ */
 class OldKVCollector implements Runnable {
 
+    private static final int BATCH_SIZE = 1000;
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 10;
+
     private final SyncKV syncKV;
 
     OldKVCollector(SyncKV syncKV) {
@@ -10,13 +21,31 @@ class OldKVCollector implements Runnable {
 
     @Override
     public void run() {
+        // checked before selecting the tables, as the tables with pending work are opened
         if (syncKV.isCompactingDisabled()) {
             return;
         }
+        for (SyncKVTable table : syncKV.getTablesForMaintenance()) {
+            while (!syncKV.isCompactingDisabled() && table.compactOldVersions(BATCH_SIZE) == BATCH_SIZE) {
+                if (!pause()) {
+                    return;
+                }
+            }
+            while (!syncKV.isCompactingDisabled() && table.reapExpired(BATCH_SIZE) == BATCH_SIZE) {
+                if (!pause()) {
+                    return;
+                }
+            }
+        }
+    }
 
-        for (String tableName : syncKV.getTableNames()) {
-            SyncKVTable table = syncKV.getTable(tableName);
-            table.collectOldKeys();
+    private static boolean pause() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(PAUSE_BETWEEN_BATCHES_MILLIS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 }
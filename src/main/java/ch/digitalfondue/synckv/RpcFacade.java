@@ -2,11 +2,13 @@ package ch.digitalfondue.synckv;
 
 import org.jgroups.Address;
 import org.jgroups.JChannel;
+import org.jgroups.StateListener;
 import org.jgroups.blocks.MethodCall;
 import org.jgroups.blocks.RequestOptions;
 import org.jgroups.blocks.RpcDispatcher;
 import org.jgroups.util.ByteArrayDataInputStream;
 import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
 import org.jgroups.util.Util;
 
@@ -67,6 +69,11 @@ class RpcFacade {
                 break;
             case HANDLE_RAW_BULK_PUT:
                 return setHandleRawBulkPut((String) argumentsValue[0], (List<KV>) argumentsValue[1], (boolean) argumentsValue[2]);
+            case HANDLE_PUT_ALL_REQUEST:
+                handlePutAllRequest((String) argumentsValue[0], (String) argumentsValue[1], (List<KV>) argumentsValue[2]);
+                break;
+            case HANDLE_GET_NEGATIVE_LOOKUP_FILTER:
+                return handleGetNegativeLookupFilter((String) argumentsValue[0]);
         }
         return null;
     }
@@ -75,6 +82,38 @@ class RpcFacade {
         return channel.getAddress();
     }
 
+    String getCurrentMember() {
+        return getCurrentAddress().toString();
+    }
+
+    List<String> getOtherMembers() {
+        return channel.view().getMembers().stream().filter(address -> !address.equals(getCurrentAddress())).map(Address::toString).collect(Collectors.toList());
+    }
+
+    String getViewId() {
+        return channel.view().getViewId().toString();
+    }
+
+    // --- STATE TRANSFER ---
+
+    void setStateListener(StateListener stateListener) {
+        rpcDispatcher.setStateListener(stateListener);
+    }
+
+    /**
+     * Fetch the state from the coordinator, blocking until it has been loaded by the state listener.
+     *
+     * @param timeoutMillis
+     * @return false if this node is the only member, nothing has been fetched
+     */
+    boolean requestState(long timeoutMillis) throws Exception {
+        if (channel.view().size() < 2) {
+            return false;
+        }
+        channel.getState(null, timeoutMillis);
+        return true;
+    }
+
     // --- PUT ---------
 
     void putRequest(String table, byte[] key, byte[] value) {
@@ -92,7 +131,25 @@ class RpcFacade {
             return;
         }
 
-        tableSupplier.apply(table).addRawKV(key, value);
+        tableSupplier.apply(table).addReplicatedRawKV(key, value);
+    }
+
+    void putAllRequest(String table, List<KV> kvs) {
+        broadcastToEverybodyElse(new MethodCall(HANDLE_PUT_ALL_REQUEST, new Object[]{addressToBase64(getCurrentAddress()), table, kvs},
+                new Class[]{String.class, String.class, List.class}));
+    }
+
+    private static final short HANDLE_PUT_ALL_REQUEST = 6;
+    void handlePutAllRequest(String src, String table, List<KV> kvs) {
+
+        Address source = fromBase64(src);
+
+        if (source.equals(getCurrentAddress())) {
+            //calling himself, ignore
+            return;
+        }
+
+        tableSupplier.apply(table).importRawData(kvs);
     }
     // -----------------
 
@@ -101,6 +158,8 @@ class RpcFacade {
 
     private static final Comparator<KV> DESC_METADATA_ORDER = (kv1, kv2) -> SyncKVTable.compareKey(kv1.k, kv2.k);
 
+    // return null if the value has not been found, and a KV with a null key if all the members confirmed that they
+    // don't have it
     KV getValue(String table, String key) {
         List<Address> everybodyElse = channel.view().getMembers().stream().filter(address -> !address.equals(getCurrentAddress())).collect(Collectors.toList());
 
@@ -120,6 +179,11 @@ class RpcFacade {
                     .sorted(DESC_METADATA_ORDER.reversed())
                     .findFirst()
                     .orElse(null);
+
+            //all the members answered that they don't have the key
+            if (res == null && rsps.size() == everybodyElse.size() && rsps.values().stream().allMatch(Rsp::wasReceived)) {
+                res = new KV(null, null);
+            }
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Error while calling getValue", e);
         }
@@ -146,6 +210,16 @@ class RpcFacade {
         return statsSupplier.get();
     }
 
+    // --- NEGATIVE LOOKUP FILTER ---
+    CompletableFuture<NegativeLookupFilter.Export> getNegativeLookupFilter(Address address, String tableName) {
+        return syncSend(address, new MethodCall(HANDLE_GET_NEGATIVE_LOOKUP_FILTER, new Object[]{tableName}, new Class[]{String.class}));
+    }
+
+    private static final short HANDLE_GET_NEGATIVE_LOOKUP_FILTER = 7;
+    NegativeLookupFilter.Export handleGetNegativeLookupFilter(String tableName) {
+        return tableSupplier.apply(tableName).exportNegativeLookupFilter();
+    }
+
     // -----------------
     // -----------------
     void getFullTableData(Address address, String tableName, Address source) {
@@ -0,0 +1,203 @@
+package ch.digitalfondue.synckv;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Internal use.
+ * Stream format of a {@link SyncKVSnapshot}: the latest version of each key of the selected tables, as stored (raw key
+ * and value), thus an import keeps the timestamps and the newest version still wins.
+ *
+ * <pre>
+ * header:  int magic, int format version, long snapshot timestamp
+ * table:   byte 1, utf table name, entries sorted by key: (int key length, key, int value length, value)*, int 0
+ * trailer: byte 0, long entry count, long crc32 of all the previous bytes
+ * </pre>
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x534b5653; // SKVS
+    private static final int FORMAT_VERSION = 1;
+    private static final byte TABLE = 1;
+    private static final byte END = 0;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * @param snapshot
+     * @param out not closed
+     * @return the number of exported key/values
+     * @throws IOException
+     */
+    static long write(SyncKVSnapshot snapshot, OutputStream out) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(checked, 64 * 1024));
+        dos.writeInt(MAGIC);
+        dos.writeInt(FORMAT_VERSION);
+        dos.writeLong(snapshot.getTimestamp());
+        long count = 0;
+        for (String tableName : new TreeSet<>(snapshot.getTableNames())) {
+            dos.writeByte(TABLE);
+            dos.writeUTF(tableName);
+            Iterator<KV> it = snapshot.getTable(tableName).rawEntries();
+            while (it.hasNext()) {
+                KV kv = it.next();
+                dos.writeInt(kv.k.length);
+                dos.write(kv.k);
+                dos.writeInt(kv.v.length);
+                dos.write(kv.v);
+                count++;
+            }
+            dos.writeInt(0);
+        }
+        dos.writeByte(END);
+        dos.writeLong(count);
+        dos.flush();
+        // the checksum itself is not part of the checksum
+        long crc = checked.getChecksum().getValue();
+        dos.writeLong(crc);
+        dos.flush();
+        return count;
+    }
+
+    /**
+     * Verify the checksum of a stream written by {@link #write(SyncKVSnapshot, OutputStream)}, without keeping the
+     * entries in memory.
+     *
+     * @param in not closed
+     * @return the number of key/values
+     * @throws IOException if the stream is not a valid snapshot, or is corrupted
+     */
+    static long verify(InputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * Read a stream written by {@link #write(SyncKVSnapshot, OutputStream)}. The entries of each table are given to
+     * the consumer as they are read: the iterator must be consumed before returning. The checksum is verified at the
+     * end of the stream.
+     *
+     * @param in not closed
+     * @param tableConsumer called once per table with its name and its entries
+     * @return the number of read key/values
+     * @throws IOException if the stream is not a valid snapshot, or is corrupted
+     */
+    static long read(InputStream in, BiConsumer<String, Iterator<KV>> tableConsumer) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 64 * 1024), new CRC32());
+        DataInputStream dis = new DataInputStream(checked);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("not a synckv snapshot");
+        }
+        int version = dis.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported snapshot format version " + version);
+        }
+        dis.readLong();
+        long count = 0;
+        while (true) {
+            byte type = dis.readByte();
+            if (type == END) {
+                break;
+            }
+            if (type != TABLE) {
+                throw new IOException("corrupted snapshot: unexpected block type " + type);
+            }
+            String tableName = dis.readUTF();
+            EntryIterator it = new EntryIterator(dis, tableConsumer == null);
+            try {
+                if (tableConsumer != null) {
+                    tableConsumer.accept(tableName, it);
+                }
+                // in case the consumer stopped early
+                while (it.hasNext()) {
+                    it.next();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            count += it.count;
+        }
+        long expectedCount = dis.readLong();
+        long crc = checked.getChecksum().getValue();
+        long expectedCrc = dis.readLong();
+        if (expectedCount != count || expectedCrc != crc) {
+            throw new IOException("corrupted snapshot: checksum mismatch");
+        }
+        return count;
+    }
+
+    private static class EntryIterator implements Iterator<KV> {
+
+        private static final KV SKIPPED = new KV(new byte[0], new byte[0]);
+
+        private final DataInputStream dis;
+        private final boolean skip;
+        private KV next;
+        private boolean done;
+        long count;
+
+        EntryIterator(DataInputStream dis, boolean skip) {
+            this.dis = dis;
+            this.skip = skip;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    int keyLength = dis.readInt();
+                    if (keyLength == 0) {
+                        done = true;
+                    } else if (skip) {
+                        skipBytes(keyLength);
+                        skipBytes(dis.readInt());
+                        next = SKIPPED;
+                        count++;
+                    } else {
+                        byte[] key = readBytes(keyLength);
+                        byte[] value = readBytes(dis.readInt());
+                        next = new KV(key, value);
+                        count++;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        // a corrupted length must not be allocated
+        private void skipBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("corrupted snapshot: negative length");
+            }
+            if (dis.skipBytes(length) != length) {
+                throw new EOFException();
+            }
+        }
+
+        private byte[] readBytes(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("corrupted snapshot: negative length");
+            }
+            byte[] res = new byte[length];
+            dis.readFully(res);
+            return res;
+        }
+
+        @Override
+        public KV next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            KV res = next;
+            next = null;
+            return res;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ch.digitalfondue.synckv;
+
+import org.jgroups.StateListener;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal use.
+ * Join time bootstrap: a new member with empty tables receives a snapshot of all the tables of the coordinator as a
+ * single stream, in the {@link SnapshotFile} format, and load it directly in the local tables. The periodic
+ * synchronization then only has to transfer the writes done during the transfer.
+ */
+class StateTransferHandler implements StateListener {
+
+    private final static Logger LOGGER = Logger.getLogger(StateTransferHandler.class.getName());
+
+    private static final long PROGRESS_INTERVAL = 100_000;
+
+    private final SyncKV syncKV;
+
+    StateTransferHandler(SyncKV syncKV) {
+        this.syncKV = syncKV;
+    }
+
+    @Override
+    public void getState(OutputStream output) throws Exception {
+        long start = System.currentTimeMillis();
+        CountingOutputStream out = new CountingOutputStream(output);
+        long count;
+        // the tables of the coordinator that are not open are read without being opened
+        try (SyncKVSnapshot snapshot = syncKV.snapshot()) {
+            count = SnapshotFile.write(snapshot, out);
+        }
+        LOGGER.log(Level.INFO, () -> "state transfer: sent " + count + " key/values, " + out.count + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    public void setState(InputStream input) throws Exception {
+        long start = System.currentTimeMillis();
+        CountingInputStream in = new CountingInputStream(input);
+        Set<SyncKVTable> loaded = new LinkedHashSet<>();
+        long[] added = new long[1];
+        try {
+            long count = SnapshotFile.read(in, (tableName, it) -> {
+                SyncKVTable table = syncKV.getTable(tableName);
+                loaded.add(table);
+                ProgressIterator progress = new ProgressIterator(tableName, it, in);
+                long tableAdded = table.bulkLoad(progress);
+                added[0] += tableAdded;
+                LOGGER.log(Level.INFO, () -> "state transfer: table " + tableName + " received, " + progress.count + " key/values, " + tableAdded + " added");
+            });
+            LOGGER.log(Level.INFO, () -> "state transfer: received " + count + " key/values, " + added[0] + " added, " + in.count + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            // what has been loaded is valid in any case, the synchronization will complete it
+            SyncKV.commit(loaded);
+        }
+    }
+
+    private static class ProgressIterator implements Iterator<KV> {
+
+        private final String tableName;
+        private final Iterator<KV> it;
+        private final CountingInputStream in;
+        long count;
+
+        ProgressIterator(String tableName, Iterator<KV> it, CountingInputStream in) {
+            this.tableName = tableName;
+            this.it = it;
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public KV next() {
+            KV kv = it.next();
+            if (++count % PROGRESS_INTERVAL == 0) {
+                LOGGER.log(Level.INFO, () -> "state transfer: table " + tableName + ", " + count + " key/values, " + in.count + " bytes received");
+            }
+            return kv;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int res = in.read();
+            if (res >= 0) {
+                count++;
+            }
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int res = in.read(b, off, len);
+            if (res > 0) {
+                count += res;
+            }
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long res = in.skip(n);
+            count += res;
+            return res;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ch.digitalfondue.synckv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage mode where each table, or each declared group of tables, is saved in its own MVStore file. Each store has
+ * its own commit, file compaction and page cache, thus a hot table does not impact the others.
+ *
+ * <pre>
+ * StoreSharding sharding = StoreSharding.perTable().cacheSize(8).group("users", "user", "session");
+ * </pre>
+ *
+ * The files are named fileName.shard.groupName. The tables that are not part of a declared group have their own store.
+ */
+public final class StoreSharding {
+
+    private final Map<String, String> groupByTable = new HashMap<>();
+    private int cacheSizeMB = -1;
+
+    private StoreSharding() {
+    }
+
+    /**
+     * Each table in its own store, unless declared in a group with {@link #group(String, String...)}.
+     *
+     * @return
+     */
+    public static StoreSharding perTable() {
+        return new StoreSharding();
+    }
+
+    /**
+     * Save the given tables in the same store. Note that the group of an existing table is not changed.
+     *
+     * @param groupName
+     * @param tableNames
+     * @return
+     */
+    public StoreSharding group(String groupName, String... tableNames) {
+        for (String tableName : tableNames) {
+            groupByTable.put(tableName, groupName);
+        }
+        return this;
+    }
+
+    /**
+     * Page cache size of each store, in MB.
+     *
+     * @param cacheSizeMB
+     * @return
+     */
+    public StoreSharding cacheSize(int cacheSizeMB) {
+        this.cacheSizeMB = cacheSizeMB;
+        return this;
+    }
+
+    String groupOf(String tableName) {
+        return groupByTable.getOrDefault(tableName, tableName);
+    }
+
+    int getCacheSizeMB() {
+        return cacheSizeMB;
+    }
+}
@@ -8,16 +8,25 @@ import org.jgroups.protocols.*;
 import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.pbcast.STABLE;
-import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.protocols.pbcast.STATE;
 import org.jgroups.stack.Protocol;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
@@ -25,19 +34,23 @@ import java.util.stream.Collectors;
  */
 public class SyncKV implements AutoCloseable, Closeable {
 
+    private final static Logger LOGGER = Logger.getLogger(SyncKV.class.getName());
+
     static {
         ensureProtocol();
     }
 
-    private final SecureRandom random;
+    private final HybridLogicalClock clock;
     private final JChannel channel;
-    private final MVStore store;
+    private final TableStores stores;
     private final RpcFacade rpcFacade;
     private final ScheduledThreadPoolExecutor scheduledExecutor;
     private final AtomicBoolean disableSync = new AtomicBoolean();
     private final AtomicBoolean disableCompacting = new AtomicBoolean();
+    private final AtomicReference<GroupCommitWriter> groupCommit = new AtomicReference<>();
     private final OldKVCollector oldKVCollector;
     private final Map<String, SyncKVTable> tables = new ConcurrentHashMap<>();
+    private final long tableValueCacheBytes;
     final Map<String, SyncStatus> syncStatus = new ConcurrentHashMap<>();
 
     /**
@@ -49,22 +62,37 @@ public class SyncKV implements AutoCloseable, Closeable {
      * @param channelName name of the channel.
      */
     public SyncKV(String fileName, String password, JChannel channel, String channelName) {
+        this(fileName, password, channel, channelName, null);
+    }
+
+    /**
+     * Note: if you are using this constructor, call SyncKV.ensureProtocol(); before building the JChannel!
+     *
+     * @param fileName the db file, pass null for an in memory representation
+     * @param password password for encrypting the file _and_ the communication between nodes. Pass null if you want to ignore this option.
+     * @param channel custom {@link JChannel} configuration. Pass null if you don't need the sync feature, which can be useful for local data.
+     * @param channelName name of the channel.
+     * @param sharding save the tables in separate files, see {@link StoreSharding}. Pass null for a single file.
+     */
+    public SyncKV(String fileName, String password, JChannel channel, String channelName, StoreSharding sharding) {
+        this(builder().fileName(fileName).password(password).sharding(sharding), channel, channelName);
+    }
+
+    SyncKV(SyncKVBuilder builder, JChannel channel, String channelName) {
 
         this.channel = channel;
-        MVStore.Builder builder = new MVStore.Builder().fileName(fileName);
-        if (password != null) {
-            builder.encryptionKey(password.toCharArray());
-        }
 
-        this.random = new SecureRandom();
+        // the random is used only once, for the node id used as a tie breaker between versions with the same timestamp
+        this.clock = new HybridLogicalClock(new SecureRandom().nextInt());
 
-        this.store = builder.open();
+        this.stores = new TableStores(builder);
+        this.tableValueCacheBytes = builder.getTableValueCacheBytes();
 
         if (channel != null) {
             try {
                 channel.connect(channelName);
 
-                this.scheduledExecutor = new ScheduledThreadPoolExecutor(3);
+                this.scheduledExecutor = new ScheduledThreadPoolExecutor(builder.getExecutorThreads(true));
 
                 this.rpcFacade = new RpcFacade(channel, this::getTable, this::getTableMetadataForSync, (tableName, end) -> {
                     if (end) {
@@ -73,18 +101,52 @@ public class SyncKV implements AutoCloseable, Closeable {
                         syncStatus.put(tableName, new SyncStatus(true, System.currentTimeMillis()));
                     }
                 }, new TableSyncExecutor(scheduledExecutor, this::getTable));
-
-                this.scheduledExecutor.scheduleAtFixedRate(new SynchronizationHandler(this, rpcFacade), 2, 30, TimeUnit.SECONDS);
-
+                this.rpcFacade.setStateListener(new StateTransferHandler(this));
             } catch (Exception e) {
                 throw new IllegalStateException(e);
             }
         } else {
             this.rpcFacade = null;
-            this.scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+            this.scheduledExecutor = new ScheduledThreadPoolExecutor(builder.getExecutorThreads(false));
         }
         this.oldKVCollector = new OldKVCollector(this);
-        this.scheduledExecutor.scheduleAtFixedRate(oldKVCollector, 2, 5, TimeUnit.MINUTES);
+        long compactionPeriod = builder.getCompactionPeriodMillis();
+        this.scheduledExecutor.scheduleAtFixedRate(oldKVCollector, compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS);
+        if (builder.getGroupCommitMaxBatchSize() > 0) {
+            enableGroupCommit(builder.getGroupCommitMaxBatchSize(), builder.getGroupCommitMaxLatencyNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (rpcFacade != null) {
+            // the tables are fully initialized only now: the state is loaded through getTable
+            if (builder.isJoinStateTransfer()) {
+                joinStateTransfer(builder.getJoinStateTransferTimeoutMillis());
+            }
+            this.scheduledExecutor.scheduleAtFixedRate(new SynchronizationHandler(this, rpcFacade), 2000, builder.getSyncPeriodMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // only a new member is bootstrapped: a restarted one already has most of the data, and the synchronization will
+    // transfer only the difference
+    private void joinStateTransfer(long timeoutMillis) {
+        if (!getTableNames().isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if (rpcFacade.requestState(timeoutMillis)) {
+                LOGGER.log(Level.INFO, () -> "state transfer on join completed in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "state transfer on join failed, the tables will be filled by the synchronization", e);
+        }
+    }
+
+    /**
+     * Fluent configuration, with the storage and runtime tuning options.
+     *
+     * @return
+     */
+    public static SyncKVBuilder builder() {
+        return new SyncKVBuilder();
     }
 
     /**
@@ -126,6 +188,35 @@ public class SyncKV implements AutoCloseable, Closeable {
         this.disableSync.set(disableSync);
     }
 
+    /**
+     * Enable the group commit mode: the writes (local puts and replicated ones) are queued and applied in batch
+     * by a single writer, with a single commit per batch.
+     *
+     * @param maxBatchSize maximum number of key/values applied in a single batch
+     * @param maxLatency maximum time a write will wait for other writes before the batch is committed
+     * @param unit the unit of maxLatency
+     */
+    public void enableGroupCommit(int maxBatchSize, long maxLatency, TimeUnit unit) {
+        GroupCommitWriter previous = groupCommit.getAndSet(new GroupCommitWriter(maxBatchSize, maxLatency, unit));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Disable the group commit mode, the pending writes will be committed before returning.
+     */
+    public void disableGroupCommit() {
+        GroupCommitWriter previous = groupCommit.getAndSet(null);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public boolean isGroupCommitEnabled() {
+        return groupCommit.get() != null;
+    }
+
     public boolean isCompactingDisabled() {
         return disableCompacting.get();
     }
@@ -135,20 +226,137 @@ public class SyncKV implements AutoCloseable, Closeable {
     }
 
     public boolean hasTable(String name) {
-        return store.hasMap(name);
+        return stores.hasTable(name);
     }
 
     public synchronized SyncKVTable getTable(String name) {
         if (tables.containsKey(name)) {
             return tables.get(name);
         }
-        SyncKVTable kv = new SyncKVTable(name, store, random, rpcFacade, disableSync);
+        SyncKVTable kv = new SyncKVTable(name, stores.storeFor(name), clock, rpcFacade, disableSync, groupCommit);
+        if (tableValueCacheBytes > 0) {
+            kv.enableValueCache(tableValueCacheBytes);
+        }
         tables.put(name, kv);
         return kv;
     }
 
+    /**
+     * Consistent, read only, point in time view of the given tables, or of all the tables if none is given.
+     * The writes on these tables are blocked only while the snapshot is created. The snapshot must be closed.
+     * A snapshot of all the tables does not open the tables that are not open yet.
+     *
+     * <pre>
+     * try (SyncKVSnapshot snapshot = syncKV.snapshot("user", "session")) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @param tableNames
+     * @return
+     */
+    public SyncKVSnapshot snapshot(String... tableNames) {
+        if (tableNames.length == 0) {
+            return snapshotAllTables();
+        }
+        List<SyncKVTable> tables = new ArrayList<>();
+        for (String name : tableNames) {
+            tables.add(getTable(name));
+        }
+        return SyncKVSnapshot.open(tables);
+    }
+
+    // holds the lock of getTable: the tables read without being opened cannot be opened, thus written, meanwhile
+    private synchronized SyncKVSnapshot snapshotAllTables() {
+        List<SyncKVTable> opened = new ArrayList<>();
+        Map<String, MVStore> unopened = new HashMap<>();
+        for (String name : getTableNames()) {
+            SyncKVTable table = tables.get(name);
+            MVStore store = table == null ? stores.storeFor(name) : null;
+            if (store != null && SyncKVTable.canSnapshotUnopened(store, name)) {
+                unopened.put(name, store);
+            } else {
+                opened.add(table != null ? table : getTable(name));
+            }
+        }
+        return SyncKVSnapshot.open(opened, unopened);
+    }
+
+    /**
+     * Write a consistent snapshot of the given tables, or of all the tables if none is given, to a file. The writes
+     * continue during the export. The file contains the latest version of each key, sorted, with a checksum; it is
+     * written to a temporary file first, so an incomplete export never replace an existing file.
+     *
+     * @param file
+     * @param tableNames
+     * @return the number of exported key/values
+     */
+    public long exportSnapshot(Path file, String... tableNames) {
+        Path absolute = file.toAbsolutePath();
+        Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try {
+            long count;
+            try (SyncKVSnapshot snapshot = snapshot(tableNames); OutputStream out = Files.newOutputStream(tmp)) {
+                count = SnapshotFile.write(snapshot, out);
+            }
+            // the file is complete and closed
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.log(Level.INFO, () -> "exported " + count + " key/values to " + absolute);
+            return count;
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load a file written by {@link #exportSnapshot(Path, String...)}, in empty or existing tables: as for the
+     * synchronization, a key/value is added only if it is newer than the local version. The checksum is verified
+     * before loading anything, then all the tables are committed once.
+     *
+     * A new node can be seeded from a recent export, the synchronization will then transfer only the difference.
+     *
+     * @param file
+     * @return the number of added key/values
+     */
+    public long importSnapshot(Path file) {
+        try {
+            try (InputStream in = Files.newInputStream(file)) {
+                SnapshotFile.verify(in);
+            }
+            long[] added = new long[1];
+            Set<SyncKVTable> loaded = new LinkedHashSet<>();
+            try (InputStream in = Files.newInputStream(file)) {
+                SnapshotFile.read(in, (tableName, it) -> {
+                    SyncKVTable table = getTable(tableName);
+                    loaded.add(table);
+                    added[0] += table.bulkLoad(it);
+                });
+            }
+            commit(loaded);
+            LOGGER.log(Level.INFO, () -> "imported " + added[0] + " key/values from " + file);
+            return added[0];
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // a single commit per store
+    static void commit(Collection<SyncKVTable> tables) {
+        Set<MVStore> stores = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (SyncKVTable table : tables) {
+            table.flushAggregates();
+            stores.add(table.getStore());
+        }
+        stores.forEach(MVStore::commit);
+    }
+
     public Set<String> getTableNames() {
-        return store.getMapNames();
+        return stores.getTableNames();
     }
 
     public static void ensureProtocol() {
@@ -194,7 +402,8 @@ public class SyncKV implements AutoCloseable, Closeable {
                     new MFC(),
                     new FRAG2(),
                     new RSVP(),
-                    new STATE_TRANSFER()
+                    // streaming state transfer, through the stack, thus encrypted as the other messages
+                    new STATE()
             ));
 
             return new JChannel(protocols);
@@ -223,19 +432,48 @@ public class SyncKV implements AutoCloseable, Closeable {
         return channel.getAddress();
     }
 
+    // the tables that are not open are reported from their persisted statistics, without opening them
     Map<String, TableStats> getTableMetadataForSync() {
         Map<String, TableStats> res = new HashMap<>();
-        tables.forEach((mapName, table) -> {
-            TableStats stats = table.getTableStats();
-            res.put(mapName, stats);
-        });
+        for (String tableName : getTableNames()) {
+            SyncKVTable table = tables.get(tableName);
+            TableStats stats = table == null ? SyncKVTable.persistedTableStats(stores.storeFor(tableName), tableName) : null;
+            res.put(tableName, stats != null ? stats : getTable(tableName).getTableStats());
+        }
+        return res;
+    }
+
+    /**
+     * @param name
+     * @return the table if it has already been opened, else null
+     */
+    SyncKVTable getOpenedTable(String name) {
+        return tables.get(name);
+    }
+
+    /**
+     * @return the open tables, and the tables not yet opened with old versions or expired keys to remove
+     */
+    List<SyncKVTable> getTablesForMaintenance() {
+        List<SyncKVTable> res = new ArrayList<>();
+        for (String tableName : getTableNames()) {
+            SyncKVTable table = tables.get(tableName);
+            if (table != null) {
+                res.add(table);
+            } else if (SyncKVTable.hasPendingMaintenance(stores.storeFor(tableName), tableName)) {
+                res.add(getTable(tableName));
+            }
+        }
         return res;
     }
 
     @Override
     public void close() {
+        disableGroupCommit();
+        tables.values().forEach(SyncKVTable::stopIndexBuilds);
         oldKVCollector.run();
-        store.close();
+        tables.values().forEach(SyncKVTable::markCleanShutdown);
+        stores.close();
         if (channel != null) {
             channel.close();
         }
@@ -0,0 +1,403 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.store.fs.FilePath;
+import org.jgroups.JChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fluent configuration of a {@link SyncKV} instance, see {@link SyncKV#builder()}.
+ *
+ * <pre>
+ * SyncKV kv = SyncKV.builder()
+ *     .fileName("data.db")
+ *     .profile(SyncKVBuilder.Profile.BULK_INGEST)
+ *     .cacheSize(128)
+ *     .build();
+ * </pre>
+ *
+ * A profile set the values of multiple options: the options set after the profile override them. The options that are
+ * not set keep the defaults of the underlying MVStore and of the constructors of {@link SyncKV}.
+ */
+public final class SyncKVBuilder {
+
+    private final static Logger LOGGER = Logger.getLogger(SyncKVBuilder.class.getName());
+
+    private static final String MEMORY_MAPPED_SCHEME = "nioMapped";
+
+    private String fileName;
+    private String password;
+    private JChannel channel;
+    private String channelName;
+    private boolean defaultChannel;
+    private StoreSharding sharding;
+
+    private int cacheSizeMB = -1;
+    private int autoCommitBufferSizeKB = -1;
+    private long autoCommitDelayMillis = -1;
+    private int pageSplitSize = -1;
+    private boolean memoryMapped;
+
+    private int executorThreads = -1;
+    private long syncPeriodMillis = TimeUnit.SECONDS.toMillis(30);
+    private long compactionPeriodMillis = TimeUnit.MINUTES.toMillis(1);
+
+    private int groupCommitMaxBatchSize = -1;
+    private long groupCommitMaxLatencyNanos;
+    private long tableValueCacheBytes = -1;
+
+    private boolean joinStateTransfer = true;
+    private long joinStateTransferTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+    SyncKVBuilder() {
+    }
+
+    /**
+     * Ready made sets of options.
+     */
+    public enum Profile {
+
+        /**
+         * Large page cache, memory mapped file when available, small pages so a point lookup read less data, and a
+         * value cache of 64MB in each table.
+         */
+        LOW_LATENCY_READS {
+            @Override
+            void apply(SyncKVBuilder builder) {
+                builder.cacheSize(64).memoryMapped(true).pageSplitSize(4 * 1024).tableValueCache(64 * 1024 * 1024);
+            }
+        },
+
+        /**
+         * Group commit, large write buffer and infrequent background commits, larger pages and less frequent
+         * compaction runs: favor the write throughput.
+         */
+        BULK_INGEST {
+            @Override
+            void apply(SyncKVBuilder builder) {
+                builder.groupCommit(1000, 5, TimeUnit.MILLISECONDS)
+                        .autoCommitBufferSize(16 * 1024)
+                        .autoCommitDelay(5, TimeUnit.SECONDS)
+                        .pageSplitSize(16 * 1024)
+                        .compactionPeriod(10, TimeUnit.MINUTES);
+            }
+        },
+
+        /**
+         * Small page cache and write buffer, a single background thread and less frequent synchronization: favor
+         * the memory usage.
+         */
+        SMALL_FOOTPRINT {
+            @Override
+            void apply(SyncKVBuilder builder) {
+                builder.cacheSize(4).autoCommitBufferSize(256).executorThreads(1).syncPeriod(1, TimeUnit.MINUTES);
+            }
+        };
+
+        abstract void apply(SyncKVBuilder builder);
+    }
+
+    public SyncKVBuilder profile(Profile profile) {
+        profile.apply(this);
+        return this;
+    }
+
+    /**
+     * @param fileName the db file, null (default) for an in memory representation
+     * @return
+     */
+    public SyncKVBuilder fileName(String fileName) {
+        this.fileName = fileName;
+        return this;
+    }
+
+    /**
+     * @param password password for encrypting the file _and_ the communication between nodes
+     * @return
+     */
+    public SyncKVBuilder password(String password) {
+        this.password = password;
+        return this;
+    }
+
+    /**
+     * Use a custom {@link JChannel}: call {@link SyncKV#ensureProtocol()} before building it.
+     *
+     * @param channel
+     * @param channelName
+     * @return
+     */
+    public SyncKVBuilder channel(JChannel channel, String channelName) {
+        this.channel = channel;
+        this.channelName = channelName;
+        this.defaultChannel = false;
+        return this;
+    }
+
+    /**
+     * Use a {@link JChannel} built with a tcp+mping stack, encrypted if a password is set.
+     *
+     * @param channelName
+     * @return
+     */
+    public SyncKVBuilder defaultChannel(String channelName) {
+        this.channel = null;
+        this.channelName = channelName;
+        this.defaultChannel = true;
+        return this;
+    }
+
+    /**
+     * See {@link StoreSharding}.
+     *
+     * @param sharding
+     * @return
+     */
+    public SyncKVBuilder sharding(StoreSharding sharding) {
+        this.sharding = sharding;
+        return this;
+    }
+
+    /**
+     * Page cache size of each store, in MB. With {@link StoreSharding#cacheSize(int)}, the size set on the sharding
+     * is used for the shards.
+     *
+     * @param cacheSizeMB
+     * @return
+     */
+    public SyncKVBuilder cacheSize(int cacheSizeMB) {
+        this.cacheSizeMB = positive(cacheSizeMB, "cacheSizeMB");
+        return this;
+    }
+
+    /**
+     * Size of the unsaved changes after which the store write them in background, in KB.
+     *
+     * @param autoCommitBufferSizeKB
+     * @return
+     */
+    public SyncKVBuilder autoCommitBufferSize(int autoCommitBufferSizeKB) {
+        this.autoCommitBufferSizeKB = positive(autoCommitBufferSizeKB, "autoCommitBufferSizeKB");
+        return this;
+    }
+
+    /**
+     * Maximum delay before the changes are written by the background thread of the store.
+     *
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public SyncKVBuilder autoCommitDelay(long delay, TimeUnit unit) {
+        this.autoCommitDelayMillis = positive(unit.toMillis(delay), "autoCommitDelay");
+        return this;
+    }
+
+    /**
+     * Size in bytes after which a page of the maps is split.
+     *
+     * @param pageSplitSize
+     * @return
+     */
+    public SyncKVBuilder pageSplitSize(int pageSplitSize) {
+        this.pageSplitSize = positive(pageSplitSize, "pageSplitSize");
+        return this;
+    }
+
+    /**
+     * Access the files using memory mapping. The file system provider is part of the h2 jar, not of h2-mvstore:
+     * if it's not on the class path, the option is ignored.
+     *
+     * @param memoryMapped
+     * @return
+     */
+    public SyncKVBuilder memoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * Number of threads used for the synchronization, the compaction and the full table transfers. Default: 3 with a
+     * channel, 1 without.
+     *
+     * @param executorThreads
+     * @return
+     */
+    public SyncKVBuilder executorThreads(int executorThreads) {
+        this.executorThreads = positive(executorThreads, "executorThreads");
+        return this;
+    }
+
+    /**
+     * Period of the synchronization with the other members of the cluster. Default: 30 seconds.
+     *
+     * @param period
+     * @param unit
+     * @return
+     */
+    public SyncKVBuilder syncPeriod(long period, TimeUnit unit) {
+        this.syncPeriodMillis = positive(unit.toMillis(period), "syncPeriod");
+        return this;
+    }
+
+    /**
+     * Period of the removal of the old versions and of the expired keys. Default: 1 minute.
+     *
+     * @param period
+     * @param unit
+     * @return
+     */
+    public SyncKVBuilder compactionPeriod(long period, TimeUnit unit) {
+        this.compactionPeriodMillis = positive(unit.toMillis(period), "compactionPeriod");
+        return this;
+    }
+
+    /**
+     * See {@link SyncKV#enableGroupCommit(int, long, TimeUnit)}.
+     *
+     * @param maxBatchSize
+     * @param maxLatency
+     * @param unit
+     * @return
+     */
+    public SyncKVBuilder groupCommit(int maxBatchSize, long maxLatency, TimeUnit unit) {
+        this.groupCommitMaxBatchSize = positive(maxBatchSize, "maxBatchSize");
+        this.groupCommitMaxLatencyNanos = unit.toNanos(maxLatency);
+        return this;
+    }
+
+    /**
+     * Enable the value cache of each table, see {@link SyncKVTable#enableValueCache(long)}.
+     *
+     * @param maxBytes
+     * @return
+     */
+    public SyncKVBuilder tableValueCache(long maxBytes) {
+        this.tableValueCacheBytes = positive(maxBytes, "maxBytes");
+        return this;
+    }
+
+    /**
+     * When joining a cluster with empty tables, fetch all the tables of the coordinator as a single stream before
+     * returning from {@link #build()}, instead of waiting for the periodic synchronization. Requires a streaming state
+     * transfer protocol in the channel (STATE or STATE_SOCK): the default channel use STATE. Default: enabled.
+     *
+     * @param joinStateTransfer
+     * @return
+     */
+    public SyncKVBuilder joinStateTransfer(boolean joinStateTransfer) {
+        this.joinStateTransfer = joinStateTransfer;
+        return this;
+    }
+
+    /**
+     * Maximum duration of the state transfer on join, after which the tables are filled by the periodic
+     * synchronization. Default: 10 minutes.
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public SyncKVBuilder joinStateTransferTimeout(long timeout, TimeUnit unit) {
+        this.joinStateTransferTimeoutMillis = positive(unit.toMillis(timeout), "joinStateTransferTimeout");
+        return this;
+    }
+
+    public SyncKV build() {
+        JChannel ch = defaultChannel ? SyncKV.buildChannel(password) : channel;
+        return new SyncKV(this, ch, channelName);
+    }
+
+    private static int positive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+
+    private static long positive(long value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    StoreSharding getSharding() {
+        return sharding;
+    }
+
+    int getCacheSizeMB() {
+        return cacheSizeMB;
+    }
+
+    int getAutoCommitBufferSizeKB() {
+        return autoCommitBufferSizeKB;
+    }
+
+    long getAutoCommitDelayMillis() {
+        return autoCommitDelayMillis;
+    }
+
+    int getPageSplitSize() {
+        return pageSplitSize;
+    }
+
+    /**
+     * @param file
+     * @return the file name, with the memory mapped scheme if enabled and available
+     */
+    String resolveFileName(String file) {
+        if (file == null || !memoryMapped) {
+            return file;
+        }
+        String mapped = MEMORY_MAPPED_SCHEME + ":" + file;
+        // an unknown scheme is silently handled as a plain file name by h2
+        if (!MEMORY_MAPPED_SCHEME.equals(FilePath.get(mapped).getScheme())) {
+            LOGGER.log(Level.WARNING, () -> "memory mapped file access is not available without the h2 jar, using the default file access for " + file);
+            return file;
+        }
+        return mapped;
+    }
+
+    int getExecutorThreads(boolean withChannel) {
+        return executorThreads > 0 ? executorThreads : (withChannel ? 3 : 1);
+    }
+
+    long getSyncPeriodMillis() {
+        return syncPeriodMillis;
+    }
+
+    long getCompactionPeriodMillis() {
+        return compactionPeriodMillis;
+    }
+
+    int getGroupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
+
+    long getGroupCommitMaxLatencyNanos() {
+        return groupCommitMaxLatencyNanos;
+    }
+
+    long getTableValueCacheBytes() {
+        return tableValueCacheBytes;
+    }
+
+    boolean isJoinStateTransfer() {
+        return joinStateTransfer;
+    }
+
+    long getJoinStateTransferTimeoutMillis() {
+        return joinStateTransferTimeoutMillis;
+    }
+}
@@ -0,0 +1,94 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVStore;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consistent, read only, point in time view of one or more tables, see {@link SyncKV#snapshot(String...)}.
+ *
+ * The reads are done on the version of the maps at the creation of the snapshot: they do not see the later writes
+ * and do not contend with the writers. The stores keep the pages of this version until the snapshot is closed, so a
+ * snapshot must always be closed, ideally with a try-with-resources block.
+ */
+public final class SyncKVSnapshot implements AutoCloseable {
+
+    private final Map<String, SyncKVTableSnapshot> tables = new HashMap<>();
+    private final Map<MVStore, MVStore.TxCounter> versionUsages = new IdentityHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final long timestamp = System.currentTimeMillis();
+
+    private SyncKVSnapshot() {
+    }
+
+    static SyncKVSnapshot open(Collection<SyncKVTable> tables) {
+        return open(tables, Collections.emptyMap());
+    }
+
+    /**
+     * @param tables
+     * @param unopened tables that are not open, with their store: they are read without being opened. The caller
+     *                 must ensure that they are not opened concurrently
+     * @return
+     */
+    static SyncKVSnapshot open(Collection<SyncKVTable> tables, Map<String, MVStore> unopened) {
+        SyncKVSnapshot snapshot = new SyncKVSnapshot();
+        // same order for all the snapshots, so two snapshots cannot deadlock
+        List<SyncKVTable> sorted = new ArrayList<>(tables);
+        sorted.sort(Comparator.comparing(SyncKVTable::getName));
+        // the writes are blocked only while the versions are opened
+        SyncKVTable.withAllStripes(sorted, () -> {
+            for (SyncKVTable table : sorted) {
+                snapshot.versionUsages.computeIfAbsent(table.getStore(), MVStore::registerVersionUsage);
+                snapshot.tables.put(table.getName(), table.openSnapshot(snapshot, snapshot.timestamp));
+            }
+            unopened.forEach((name, store) -> {
+                snapshot.versionUsages.computeIfAbsent(store, MVStore::registerVersionUsage);
+                snapshot.tables.put(name, SyncKVTable.openSnapshot(store, name, snapshot, snapshot.timestamp));
+            });
+        });
+        return snapshot;
+    }
+
+    /**
+     * @param name
+     * @return the view of the given table
+     * @throws IllegalArgumentException if the table is not part of the snapshot
+     */
+    public SyncKVTableSnapshot getTable(String name) {
+        checkOpen();
+        SyncKVTableSnapshot table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("table " + name + " is not part of the snapshot");
+        }
+        return table;
+    }
+
+    public Set<String> getTableNames() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    /**
+     * @return creation time of the snapshot, in milliseconds since epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("the snapshot has been closed");
+        }
+    }
+
+    /**
+     * Release the versions held by the snapshot, so the stores can reclaim them.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            versionUsages.forEach(MVStore::deregisterVersionUsage);
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package ch.digitalfondue.synckv;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class SyncKVStructuredTable<T> {
 
+    // the write buffer is reused by all the put operations of a thread
+    private static final ThreadLocal<ValueWriter> WRITERS = ThreadLocal.withInitial(ValueWriter::new);
+
     private final SyncKVTable table;
     private final DataConverter<T> dataConverter;
 
     SyncKVStructuredTable(SyncKVTable table, DataConverterFrom<T> from, DataConverterTo<T> to) {
+        this(table, new StreamConverterAdapter<>(from, to));
+    }
+
+    SyncKVStructuredTable(SyncKVTable table, BufferConverter<T> converter) {
         this.table = table;
-        this.dataConverter = new DataConverter<>(from, to);
+        this.dataConverter = new DataConverter<>(converter);
     }
 
     public T get(String key) {
@@ -26,6 +36,12 @@ public class SyncKVStructuredTable<T> {
         table.put(key, value == null ? null : dataConverter.to(value));
     }
 
+    public void putAll(Map<String, T> values) {
+        Map<String, byte[]> converted = new LinkedHashMap<>(values.size());
+        values.forEach((key, value) -> converted.put(key, value == null ? null : dataConverter.to(value)));
+        table.putAll(converted);
+    }
+
     public Iterator<String> keys() {
         return table.keys();
     }
@@ -34,42 +50,233 @@ public class SyncKVStructuredTable<T> {
         return table.count();
     }
 
+    public int count(String prefix) {
+        return table.count(prefix);
+    }
+
+    /**
+     * See {@link SyncKVTable#scan(String, String)}.
+     *
+     * @param fromKey
+     * @param toKey
+     * @return
+     */
+    public Stream<Map.Entry<String, T>> scan(String fromKey, String toKey) {
+        return convert(table.scan(fromKey, toKey));
+    }
+
+    /**
+     * See {@link SyncKVTable#scanPrefix(String)}.
+     *
+     * @param prefix
+     * @return
+     */
+    public Stream<Map.Entry<String, T>> scanPrefix(String prefix) {
+        return convert(table.scanPrefix(prefix));
+    }
+
+    private Stream<Map.Entry<String, T>> convert(Iterator<Map.Entry<String, byte[]>> it) {
+        Iterable<Map.Entry<String, byte[]>> iterable = () -> it;
+        return StreamSupport.stream(iterable.spliterator(), false).map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), dataConverter.from(e.getValue())));
+    }
+
+    /**
+     * Declare a secondary index on the values of this table, see {@link #findBy(String, String)}.
+     *
+     * The index is maintained on each write, including the ones received from the other nodes, and is persisted. The
+     * extractor must be declared again after each open, with the same name. When declared for the first time on a
+     * table with data, the index is built in background. When declared again after an open, it is checked in
+     * background only if the table has been written before the declaration, as these writes have not been indexed.
+     *
+     * @param indexName
+     * @param extractor return the index value of a record, or null if the record must not be indexed
+     */
+    public void declareIndex(String indexName, Function<T, String> extractor) {
+        table.declareIndex(indexName, value -> extractor.apply(dataConverter.from(value)));
+    }
+
+    /**
+     * Remove an index declared with {@link #declareIndex(String, Function)}.
+     *
+     * @param indexName
+     */
+    public void removeIndex(String indexName) {
+        table.removeIndex(indexName);
+    }
+
+    /**
+     * @param indexName
+     * @return true if the index has been built: until then, {@link #findBy(String, String)} scan the whole table
+     */
+    public boolean isIndexReady(String indexName) {
+        return table.isIndexReady(indexName);
+    }
+
+    /**
+     * Records with the given index value: a single seek in the index, followed by a lookup of each matching key.
+     *
+     * @param indexName
+     * @param indexValue
+     * @return
+     */
+    public Stream<Map.Entry<String, T>> findBy(String indexName, String indexValue) {
+        return convert(table.findByIndex(indexName, indexValue));
+    }
+
     public Stream<Map.Entry<String, T>> stream() {
-        Iterable<String> iterable = () -> keys();
-        return StreamSupport.stream(iterable.spliterator(), false).map(key -> new AbstractMap.SimpleImmutableEntry<>(key, get(key)));
+        return stream(false);
+    }
+
+    /**
+     * Stream over the records of this table in the given snapshot, see {@link SyncKV#snapshot(String...)}.
+     *
+     * @param snapshot
+     * @return
+     */
+    public Stream<Map.Entry<String, T>> stream(SyncKVSnapshot snapshot) {
+        return convert(snapshot.getTable(table.getName()).entries());
+    }
+
+    /**
+     * Value of the given key in the snapshot.
+     *
+     * @param key
+     * @param snapshot
+     * @return
+     */
+    public T get(String key, SyncKVSnapshot snapshot) {
+        byte[] res = snapshot.getTable(table.getName()).get(key);
+        return res == null ? null : dataConverter.from(res);
+    }
+
+    /**
+     * Parallel version of {@link #stream()}: the table is split in key ranges, the values are decoded concurrently.
+     *
+     * @return
+     */
+    public Stream<Map.Entry<String, T>> parallelStream() {
+        return stream(true);
+    }
+
+    private Stream<Map.Entry<String, T>> stream(boolean parallel) {
+        return StreamSupport.stream(table.spliterator(), parallel).map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), dataConverter.from(e.getValue())));
     }
 
 
-    class DataConverter<T> {
+    static class DataConverter<T> {
+
+        private final BufferConverter<T> converter;
+
+        DataConverter(BufferConverter<T> converter) {
+            this.converter = converter;
+        }
+
+        // the stored value is not copied: the converter read directly from it
+        T from(byte[] a) {
+            return converter.read(ByteBuffer.wrap(a).asReadOnlyBuffer());
+        }
+
+        byte[] to(T a) {
+            ValueWriter writer = WRITERS.get();
+            if (writer.size() > 0) {
+                // re-entrant call from a converter: do not overwrite the value being written
+                writer = new ValueWriter();
+            }
+            try {
+                converter.write(a, writer);
+                return writer.toByteArray();
+            } finally {
+                writer.reset();
+            }
+        }
+    }
+
+    /**
+     * Adapter of the stream based converters.
+     */
+    static class StreamConverterAdapter<T> implements BufferConverter<T> {
 
         private final DataConverterFrom<T> fromConverter;
         private final DataConverterTo<T> toConverter;
 
-        DataConverter(DataConverterFrom<T> from, DataConverterTo<T> to) {
+        StreamConverterAdapter(DataConverterFrom<T> from, DataConverterTo<T> to) {
             this.fromConverter = from;
             this.toConverter = to;
         }
 
-        T from(byte[] a) {
-            try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(a))) {
+        @Override
+        public T read(ByteBuffer buffer) {
+            try (DataInputStream dis = new DataInputStream(new ByteBufferInputStream(buffer))) {
                 return fromConverter.apply(dis);
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
         }
 
-        byte[] to(T a) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream daos = new DataOutputStream(baos);
+        @Override
+        public void write(T value, ValueWriter writer) {
             try {
-                toConverter.apply(a, daos);
-                return baos.toByteArray();
+                toConverter.apply(value, writer.dataOutput());
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
         }
     }
 
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Converter working directly on the stored bytes, without the allocation of the intermediate streams of
+     * {@link DataConverterFrom} and {@link DataConverterTo}. The byte order is big endian, thus the format is
+     * compatible with the stream based converters.
+     *
+     * @param <T>
+     */
+    public interface BufferConverter<T> {
+
+        /**
+         * @param buffer read only view of the stored value, valid only during the call
+         * @return
+         */
+        T read(ByteBuffer buffer);
+
+        /**
+         * @param value
+         * @param writer reusable buffer, valid only during the call
+         */
+        void write(T value, ValueWriter writer);
+    }
+
     @FunctionalInterface
     public interface DataConverterFrom<T> {
         T apply(DataInputStream dis) throws IOException;
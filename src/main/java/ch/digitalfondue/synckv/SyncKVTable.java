@@ -1,5 +1,6 @@
 package ch.digitalfondue.synckv;
 
+import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.WriteBuffer;
@@ -7,10 +8,19 @@ import org.h2.mvstore.type.DataType;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -20,92 +30,551 @@ public class SyncKVTable {
     private final static Logger LOGGER = Logger.getLogger(SyncKVTable.class.getName());
 
     private final String tableName;
-    private final SecureRandom random;
+    private final HybridLogicalClock clock;
     private final RpcFacade rpcFacade;
     private final MVMap<byte[], byte[]> table;
+    // logical key -> newest versioned raw key present in table
+    private final MVMap<byte[], byte[]> latest;
+    // table metadata: key count, digest
+    private final MVMap<String, Object> meta;
+    // logical keys that have old versions to be removed by the compaction
+    private final MVMap<byte[], byte[]> dirty;
+    // physical time of the latest version + logical key, ordered by time: only maintained if a time to live is set
+    private final MVMap<byte[], byte[]> expiry;
+    // time to live of the keys in milliseconds, 0 if disabled
+    private volatile long timeToLive;
+    // optional compression of the values written locally
+    private volatile ValueCodec compressionCodec;
+    private volatile int compressionThreshold;
+    private final LongAdder encodedValueCount = new LongAdder();
+    private final LongAdder plainValueCount = new LongAdder();
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
     private final MVStore store;
-    private final AtomicReference<TableStats> tableStats = new AtomicReference<>();
 
-    //currentTimeInMilli and nanoTime and random.nextInt
-    static final int METADATA_LENGTH = Long.BYTES + Long.BYTES + Integer.BYTES;
-    private final AtomicBoolean disableSync;
-    private static final byte[] FLOOR_METADATA = new byte[METADATA_LENGTH]; //<- filled with -128
+    // count of logical keys and sum of the 64 bit hash of their latest version, maintained on each write.
+    // As the sum is commutative, it can be updated without rescanning the table. The aggregates are updated
+    // concurrently by the writers and written in the meta map before each commit, see flushAggregates.
+    private final LongAdder keyCount = new LongAdder();
+    private final LongAdder digest = new LongAdder();
+    private final AtomicBoolean statsChanged = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    // leaves of the tree used for the partial synchronization
+    private final TreeSyncLeaves treeSyncLeaves;
+    // optional cache of the latest values
+    private volatile ValueCache valueCache;
+    // optional filter for avoiding the remote lookup of absent keys
+    private volatile NegativeLookupFilter negativeLookupFilter;
+    // declared prefixes with their maintained logical key count
+    private final Map<String, PrefixCounter> prefixCounters = new ConcurrentHashMap<>();
+
+    private final Map<String, TableIndex> indexes = new ConcurrentHashMap<>();
+    // true if an index marked as built has not been declared again since the open
+    private volatile boolean hasUndeclaredIndexes;
+
+    // the writes of a logical key are serialized by the stripe selected by its hash, the writes of different keys
+    // can be done in parallel
+    private static final int STRIPES = 64;
+    private final Lock[] stripes = new Lock[STRIPES];
 
-    private static final DataType TABLE_KEY_TYPE = new KeyByteArrayDataType();
+    private final AtomicBoolean disableSync;
+    private final AtomicReference<GroupCommitWriter> groupCommit;
+
+    // prefix of the maps used internally, they are not exposed as tables
+    static final String INTERNAL_MAP_PREFIX = "__synckv__";
+    private static final String LATEST_INDEX_PREFIX = INTERNAL_MAP_PREFIX + "latest.";
+    private static final String META_PREFIX = INTERNAL_MAP_PREFIX + "meta.";
+    private static final String TREE_PREFIX = INTERNAL_MAP_PREFIX + "tree.";
+    private static final String DIRTY_PREFIX = INTERNAL_MAP_PREFIX + "dirty.";
+    private static final String EXPIRY_PREFIX = INTERNAL_MAP_PREFIX + "expiry.";
+    private static final String INDEX_PREFIX = INTERNAL_MAP_PREFIX + "index.";
+    private static final byte[] DIRTY_MARKER = new byte[0];
+
+    private static final String META_KEY_COUNT = "stats.count";
+    private static final String META_DIGEST = "stats.digest";
+    private static final String META_PREFIX_COUNT = "prefix.";
+    private static final String META_TIME_TO_LIVE = "ttl.millis";
+    private static final String META_COMPRESSION_CODEC = "compression.codec";
+    private static final String META_COMPRESSION_THRESHOLD = "compression.threshold";
+    private static final String META_INDEX = "index.";
+    private static final String META_CLEAN_SHUTDOWN = "clean.shutdown";
+    private static final int INDEX_BUILD_BATCH_SIZE = 10_000;
+    private static final int BULK_LOAD_BATCH_SIZE = 10_000;
+
+    static final DataType TABLE_KEY_TYPE = new KeyByteArrayDataType();
     private static final DataType TABLE_VALUE_TYPE = new ValueByteArrayDataType();
+    static final DataType LOGICAL_KEY_TYPE = new LogicalKeyByteArrayDataType();
+    private static final DataType EXPIRY_KEY_TYPE = new ExpiryKeyByteArrayDataType();
 
-    static {
-        Arrays.fill(FLOOR_METADATA, Byte.MIN_VALUE);
-    }
-
-    SyncKVTable(String tableName, MVStore store, SecureRandom random, RpcFacade rpcFacade, AtomicBoolean disableSync) {
+    SyncKVTable(String tableName, MVStore store, HybridLogicalClock clock, RpcFacade rpcFacade, AtomicBoolean disableSync, AtomicReference<GroupCommitWriter> groupCommit) {
         this.tableName = tableName;
-        this.random = random;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.clock = clock;
         this.rpcFacade = rpcFacade;
 
-        MVMap.Builder b = new MVMap.Builder<>();
-        b.setKeyType(TABLE_KEY_TYPE);
-        b.setValueType(TABLE_VALUE_TYPE);
-        this.table = store.openMap(tableName, b);
+        this.table = openRawTable(store, tableName);
         this.store = store;
         this.disableSync = disableSync;
+        this.groupCommit = groupCommit;
+
+        String latestIndexName = LATEST_INDEX_PREFIX + tableName;
+        boolean mustBuildLatestIndex = !store.hasMap(latestIndexName);
+        MVMap.Builder<byte[], byte[]> l = new MVMap.Builder<>();
+        l.setKeyType(LOGICAL_KEY_TYPE);
+        l.setValueType(TABLE_VALUE_TYPE);
+        this.latest = store.openMap(latestIndexName, l);
+
+        this.meta = store.openMap(META_PREFIX + tableName);
+        String treeName = TREE_PREFIX + tableName;
+        boolean mustBuildTree = !store.hasMap(treeName);
+        this.treeSyncLeaves = new TreeSyncLeaves(store.openMap(treeName));
+        String dirtyName = DIRTY_PREFIX + tableName;
+        boolean mustBuildDirtyLog = !store.hasMap(dirtyName);
+        MVMap.Builder<byte[], byte[]> d = new MVMap.Builder<>();
+        d.setKeyType(LOGICAL_KEY_TYPE);
+        d.setValueType(TABLE_VALUE_TYPE);
+        this.dirty = store.openMap(dirtyName, d);
+        String expiryName = EXPIRY_PREFIX + tableName;
+        boolean mustBuildExpiry = !store.hasMap(expiryName);
+        MVMap.Builder<byte[], byte[]> e = new MVMap.Builder<>();
+        e.setKeyType(EXPIRY_KEY_TYPE);
+        e.setValueType(TABLE_VALUE_TYPE);
+        this.expiry = store.openMap(expiryName, e);
+        this.timeToLive = (Long) meta.getOrDefault(META_TIME_TO_LIVE, 0L);
+        if (meta.containsKey(META_COMPRESSION_CODEC)) {
+            this.compressionCodec = ValueCodecs.byName((String) meta.get(META_COMPRESSION_CODEC));
+            this.compressionThreshold = (Integer) meta.get(META_COMPRESSION_THRESHOLD);
+        }
+        for (String metaKey : meta.keySet()) {
+            if (metaKey.startsWith(META_PREFIX_COUNT)) {
+                String prefix = metaKey.substring(META_PREFIX_COUNT.length());
+                prefixCounters.put(prefix, new PrefixCounter(prefix, (Long) meta.get(metaKey)));
+            }
+        }
+
+        // store created before the introduction of the latest version index
+        if (mustBuildLatestIndex && !table.isEmpty()) {
+            rebuildLatestIndex();
+        }
+
+        // the aggregates are written before each commit, but the background writer of the store may save the data
+        // without them: they are trusted only after a clean shutdown. The marker is removed until the next one.
+        boolean cleanShutdown = meta.remove(META_CLEAN_SHUTDOWN) != null;
+        // for the same reason, a write may have been saved in the table without the matching update of the side maps
+        if (!cleanShutdown && !mustBuildLatestIndex) {
+            reconcileSideMaps();
+        }
+        // the indexes are valid after a clean shutdown, until a write is done while they are not declared
+        for (String metaKey : meta.keySet()) {
+            if (metaKey.startsWith(META_INDEX)) {
+                if (cleanShutdown) {
+                    hasUndeclaredIndexes = true;
+                } else {
+                    meta.remove(metaKey);
+                }
+            }
+        }
+        if (!cleanShutdown || mustBuildLatestIndex || mustBuildTree || !meta.containsKey(META_KEY_COUNT) || !meta.containsKey(META_DIGEST)
+                || (Long) meta.get(META_KEY_COUNT) != latest.sizeAsLong()) {
+            rebuildTableStats();
+        } else {
+            this.keyCount.add((Long) meta.get(META_KEY_COUNT));
+            this.digest.add((Long) meta.get(META_DIGEST));
+            store.tryCommit();
+        }
+
+        // table moved to another store with its time to live setting: the keys must be queued again
+        if (mustBuildExpiry && timeToLive > 0) {
+            for (byte[] rawKey : latest.values()) {
+                expiry.put(expiryKey(rawKey), DIRTY_MARKER);
+            }
+            store.tryCommit();
+        }
+
+        // store created before the introduction of the dirty key log: the old versions must be found once
+        if (mustBuildDirtyLog && table.sizeAsLong() > latest.sizeAsLong()) {
+            rebuildDirtyLog();
+        }
     }
 
-    static boolean sameKeyIgnoringMetadata(byte[] a, byte[] b) {
-        if (a == null && b == null) {
-            return true;
+    static boolean isInternalMap(String name) {
+        return name.startsWith(INTERNAL_MAP_PREFIX);
+    }
+
+    static MVMap<byte[], byte[]> openRawTable(MVStore store, String tableName) {
+        MVMap.Builder<byte[], byte[]> b = new MVMap.Builder<>();
+        b.setKeyType(TABLE_KEY_TYPE);
+        b.setValueType(TABLE_VALUE_TYPE);
+        return store.openMap(tableName, b);
+    }
+
+    /**
+     * @param tableName
+     * @return the names of the internal maps of the given table
+     */
+    static List<String> internalMapNames(String tableName) {
+        return Arrays.asList(LATEST_INDEX_PREFIX + tableName, META_PREFIX + tableName, TREE_PREFIX + tableName, DIRTY_PREFIX + tableName, EXPIRY_PREFIX + tableName);
+    }
+
+    /**
+     * Copy the persisted settings of a table to another store: the other entries of the meta map (aggregates, index
+     * state) are rebuilt on open, as are the internal maps.
+     *
+     * @param from
+     * @param to
+     * @param tableName
+     */
+    static void copySettings(MVStore from, MVStore to, String tableName) {
+        String metaName = META_PREFIX + tableName;
+        if (!from.hasMap(metaName)) {
+            return;
         }
+        MVMap<String, Object> source = from.openMap(metaName);
+        MVMap<String, Object> destination = to.openMap(metaName);
+        for (String metaKey : source.keySet()) {
+            if (isSetting(metaKey)) {
+                destination.put(metaKey, source.get(metaKey));
+            }
+        }
+    }
 
-        if ((a == null && b != null) || (a != null && b == null)) {
-            return false;
+    private static boolean isSetting(String metaKey) {
+        return metaKey.startsWith(META_PREFIX_COUNT) || META_TIME_TO_LIVE.equals(metaKey) || META_COMPRESSION_CODEC.equals(metaKey) || META_COMPRESSION_THRESHOLD.equals(metaKey);
+    }
+
+    /**
+     * @param tableName
+     * @return the prefix of the maps of the secondary indexes of the given table
+     */
+    static String indexMapPrefix(String tableName) {
+        return INDEX_PREFIX + tableName + "/";
+    }
+
+    private void rebuildLatestIndex() {
+        latest.clear();
+        int count = 0;
+        Iterator<byte[]> it = rawKeys();
+        while (it.hasNext()) {
+            byte[] rawKey = it.next();
+            latest.put(logicalKey(rawKey), rawKey);
+            count++;
         }
+        store.tryCommit();
+        int finalCount = count;
+        LOGGER.log(Level.INFO, () -> "in table " + tableName + ": rebuilt latest version index with " + finalCount + " keys");
+    }
 
-        if (a.length != b.length) {
+    // after an unclean shutdown: align the latest version index, the dirty key log and the expiry queue on the
+    // table, which is written first. Called before rebuilding the aggregates, as they are derived from the index.
+    private void reconcileSideMaps() {
+        long fixed = 0;
+        byte[] newest = null;
+        Iterator<byte[]> it = table.keyIterator(null);
+        while (true) {
+            byte[] key = it.hasNext() ? it.next() : null;
+            if (key != null && newest != null && sameKeyIgnoringMetadata(newest, key)) {
+                // an old version: the key must be in the dirty log
+                byte[] logicalKey = logicalKey(key);
+                if (!dirty.containsKey(logicalKey)) {
+                    dirty.put(logicalKey, DIRTY_MARKER);
+                }
+                newest = key;
+                continue;
+            }
+            if (newest != null) {
+                byte[] logicalKey = logicalKey(newest);
+                byte[] latestKey = latest.get(logicalKey);
+                if (latestKey == null || compareKey(latestKey, newest) != 0) {
+                    latest.put(logicalKey, newest);
+                    fixed++;
+                }
+                if (timeToLive > 0) {
+                    byte[] expiryKey = expiryKey(newest);
+                    if (!expiry.containsKey(expiryKey)) {
+                        expiry.put(expiryKey, DIRTY_MARKER);
+                    }
+                }
+            }
+            if (key == null) {
+                break;
+            }
+            newest = key;
+        }
+        // the keys with at least one version have been aligned above: the others have been removed from the table
+        List<byte[]> removed = new ArrayList<>();
+        Cursor<byte[], byte[]> cursor = latest.cursor(null);
+        while (cursor.hasNext()) {
+            byte[] logicalKey = cursor.next();
+            if (!table.containsKey(cursor.getValue())) {
+                removed.add(logicalKey);
+            }
+        }
+        removed.forEach(latest::remove);
+        fixed += removed.size();
+        if (fixed > 0) {
+            long finalFixed = fixed;
+            LOGGER.log(Level.WARNING, () -> "in table " + tableName + ": fixed " + finalFixed + " keys of the latest version index after an unclean shutdown");
+        }
+    }
+
+    private void rebuildDirtyLog() {
+        byte[] previousKey = null;
+        for (byte[] key : table.keySet()) {
+            if (sameKeyIgnoringMetadata(previousKey, key)) {
+                dirty.put(logicalKey(key), DIRTY_MARKER);
+            }
+            previousKey = key;
+        }
+        store.tryCommit();
+        LOGGER.log(Level.INFO, () -> "in table " + tableName + ": rebuilt dirty key log with " + dirty.size() + " keys");
+    }
+
+    private void rebuildTableStats() {
+        long count = 0;
+        long sum = 0;
+        treeSyncLeaves.clear();
+        for (byte[] rawKey : latest.values()) {
+            count++;
+            sum += MurmurHash.hash64(rawKey);
+            treeSyncLeaves.add(rawKey);
+        }
+        keyCount.reset();
+        keyCount.add(count);
+        digest.reset();
+        digest.add(sum);
+        statsChanged.set(true);
+        for (PrefixCounter counter : prefixCounters.values()) {
+            counter.count.set(countByScan(counter.prefixBytes));
+            counter.changed.set(true);
+        }
+        commit();
+    }
+
+    /**
+     * Write the aggregates maintained in memory (key count, digest, tree leaves, prefix counts) in the side maps.
+     * Called before each commit.
+     */
+    void flushAggregates() {
+        synchronized (flushLock) {
+            if (statsChanged.getAndSet(false)) {
+                meta.put(META_KEY_COUNT, keyCount.sum());
+                meta.put(META_DIGEST, digest.sum());
+            }
+            treeSyncLeaves.flush();
+            for (PrefixCounter counter : prefixCounters.values()) {
+                if (counter.changed.getAndSet(false)) {
+                    meta.put(META_PREFIX_COUNT + counter.prefix, counter.count.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the aggregates and mark them as valid, called before closing the store: on the next open, the table is
+     * ready without any scan.
+     */
+    void markCleanShutdown() {
+        synchronized (flushLock) {
+            flushAggregates();
+            meta.put(META_CLEAN_SHUTDOWN, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Statistics of a table that is not open, read from its side maps.
+     *
+     * @param store
+     * @param tableName
+     * @return null if the table has not been closed cleanly: it must be opened for validating its aggregates
+     */
+    static TableStats persistedTableStats(MVStore store, String tableName) {
+        String metaName = META_PREFIX + tableName;
+        if (!store.hasMap(metaName)) {
+            return null;
+        }
+        MVMap<String, Object> meta = store.openMap(metaName);
+        Object count = meta.get(META_KEY_COUNT);
+        Object digest = meta.get(META_DIGEST);
+        if (!meta.containsKey(META_CLEAN_SHUTDOWN) || count == null || digest == null) {
+            return null;
+        }
+        return new TableStats(((Long) count).intValue(), (Long) digest);
+    }
+
+    /**
+     * @param store
+     * @param tableName
+     * @return true if the table, not open, has old versions to remove or expired keys
+     */
+    static boolean hasPendingMaintenance(MVStore store, String tableName) {
+        String metaName = META_PREFIX + tableName;
+        long timeToLive = store.hasMap(metaName) ? (Long) store.<String, Object>openMap(metaName).getOrDefault(META_TIME_TO_LIVE, 0L) : 0L;
+        String expiryName = EXPIRY_PREFIX + tableName;
+        if (timeToLive > 0 && store.hasMap(expiryName)) {
+            MVMap.Builder<byte[], byte[]> e = new MVMap.Builder<>();
+            e.setKeyType(EXPIRY_KEY_TYPE);
+            e.setValueType(TABLE_VALUE_TYPE);
+            // the queue is ordered by time: only the first key must be checked
+            byte[] first = store.openMap(expiryName, e).firstKey();
+            if (first != null && KeyCodec.getLong(first, 0) + timeToLive <= System.currentTimeMillis()) {
+                return true;
+            }
+        }
+        String dirtyName = DIRTY_PREFIX + tableName;
+        if (!store.hasMap(dirtyName)) {
             return false;
         }
+        MVMap.Builder<byte[], byte[]> d = new MVMap.Builder<>();
+        d.setKeyType(LOGICAL_KEY_TYPE);
+        d.setValueType(TABLE_VALUE_TYPE);
+        return !store.openMap(dirtyName, d).isEmpty();
+    }
 
-        ByteBuffer keyA = ByteBuffer.wrap(a, 0, a.length - METADATA_LENGTH);
-        ByteBuffer keyB = ByteBuffer.wrap(b, 0, b.length - METADATA_LENGTH);
+    private void commit() {
+        flushAggregates();
+        store.tryCommit();
+    }
 
-        return keyA.equals(keyB);
+    private Lock stripeFor(byte[] rawKey) {
+        return stripeFor(rawKey, KeyCodec.logicalOffset(rawKey), KeyCodec.logicalLength(rawKey));
     }
 
-    static int compareKey(byte[] ba, byte[] bb) {
-        ByteBuffer keyA = ByteBuffer.wrap(ba, 0, ba.length - METADATA_LENGTH);
-        ByteBuffer keyB = ByteBuffer.wrap(bb, 0, bb.length - METADATA_LENGTH);
+    private Lock stripeFor(String key) {
+        KeyCodec.KeySlice slice = KeyCodec.logicalKeySlice(key);
+        return stripeFor(slice.array, slice.offset, slice.length);
+    }
 
-        int comparison = keyA.compareTo(keyB);
+    // the hash of the logical key only: all the versions of a key, in both formats, share the same stripe
+    private Lock stripeFor(byte[] array, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + array[i];
+        }
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    // acquire all the stripes: no write can be done while the given action is running
+    private void withAllStripes(Runnable action) {
+        withAllStripes(Collections.singletonList(this), action);
+    }
 
-        if (comparison != 0) {
-            return comparison;
+    // acquire all the stripes of the given tables, in the order of the list. The locks are taken in a loop, not
+    // nested, so the number of tables is not limited by the stack size
+    static void withAllStripes(List<SyncKVTable> tables, Runnable action) {
+        List<Lock> locked = new ArrayList<>(tables.size() * STRIPES);
+        try {
+            for (SyncKVTable table : tables) {
+                for (Lock stripe : table.stripes) {
+                    stripe.lock();
+                    locked.add(stripe);
+                }
+            }
+            action.run();
+        } finally {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).unlock();
+            }
         }
+    }
 
+    // called when the latest version of a logical key change: newLatest is null if the key has been removed
+    private void onLatestChanged(byte[] previousLatest, byte[] newLatest) {
+        if (previousLatest != null) {
+            if (newLatest != null && table.containsKey(previousLatest)) {
+                dirty.put(logicalKey(previousLatest), DIRTY_MARKER);
+            }
+            digest.add(-MurmurHash.hash64(previousLatest));
+            keyCount.decrement();
+            treeSyncLeaves.remove(previousLatest);
+        }
+        if (newLatest != null) {
+            digest.add(MurmurHash.hash64(newLatest));
+            keyCount.increment();
+            treeSyncLeaves.add(newLatest);
+        }
+        statsChanged.set(true);
 
-        ByteBuffer metadataA = ByteBuffer.wrap(ba, ba.length - METADATA_LENGTH, METADATA_LENGTH);
-        ByteBuffer metadataB = ByteBuffer.wrap(bb, bb.length - METADATA_LENGTH, METADATA_LENGTH);
+        if (timeToLive > 0) {
+            if (previousLatest != null) {
+                expiry.remove(expiryKey(previousLatest));
+            }
+            if (newLatest != null) {
+                expiry.put(expiryKey(newLatest), DIRTY_MARKER);
+            }
+        }
 
-        long timeInMilliA = metadataA.getLong();
-        long timeInMilliB = metadataB.getLong();
+        ValueCache cache = valueCache;
+        if (cache != null) {
+            byte[] rawKey = newLatest != null ? newLatest : previousLatest;
+            cache.invalidate(KeyCodec.logicalKeyString(rawKey));
+        }
 
-        comparison = Long.compare(timeInMilliA, timeInMilliB);
+        NegativeLookupFilter filter = negativeLookupFilter;
+        if (filter != null && previousLatest == null && newLatest != null) {
+            filter.add(newLatest);
+        }
 
-        if (comparison != 0) {
-            return comparison;
+        if (hasUndeclaredIndexes) {
+            invalidateUndeclaredIndexes();
+        }
+        if (!indexes.isEmpty()) {
+            byte[] rawKey = newLatest != null ? newLatest : previousLatest;
+            byte[] logicalKey = logicalKey(rawKey);
+            byte[] value = newLatest != null ? decodeValue(newLatest, table.get(newLatest)) : null;
+            for (TableIndex index : indexes.values()) {
+                index.update(logicalKey, value);
+            }
         }
 
-        long nanoTimeA = metadataA.getLong();
-        long nanoTimeB = metadataB.getLong();
+        // insertion or removal of a logical key
+        if ((previousLatest == null) != (newLatest == null)) {
+            byte[] rawKey = previousLatest != null ? previousLatest : newLatest;
+            int delta = newLatest != null ? 1 : -1;
+            for (PrefixCounter counter : prefixCounters.values()) {
+                if (counter.matches(rawKey)) {
+                    counter.count.addAndGet(delta);
+                    counter.changed.set(true);
+                }
+            }
+        }
+    }
 
-        comparison = Long.compare(nanoTimeA, nanoTimeB);
+    // the write being done is not indexed by the indexes not yet declared: they will be checked once declared
+    private void invalidateUndeclaredIndexes() {
+        synchronized (flushLock) {
+            if (!hasUndeclaredIndexes) {
+                return;
+            }
+            for (String metaKey : meta.keySet()) {
+                if (metaKey.startsWith(META_INDEX) && !indexes.containsKey(metaKey.substring(META_INDEX.length()))) {
+                    meta.remove(metaKey);
+                }
+            }
+            hasUndeclaredIndexes = false;
+        }
+    }
+
+    static byte[] logicalKey(byte[] rawKey) {
+        return KeyCodec.logicalKey(rawKey);
+    }
+
+    static boolean sameKeyIgnoringMetadata(byte[] a, byte[] b) {
+        if (a == null && b == null) {
+            return true;
+        }
 
-        if (comparison != 0) {
-            return comparison;
+        if ((a == null && b != null) || (a != null && b == null)) {
+            return false;
         }
 
-        int rndA = metadataA.getInt();
-        int rndB = metadataB.getInt();
-        comparison = Integer.compare(rndA, rndB);
-        return comparison;
+        return KeyCodec.sameLogicalKey(a, b);
+    }
+
+    static int compareKey(byte[] ba, byte[] bb) {
+        return KeyCodec.compare(ba, bb);
     }
 
     private static class KeyByteArrayDataType extends ValueByteArrayDataType {
@@ -119,13 +588,45 @@ public class SyncKVTable {
         }
     }
 
+    // key type of the maps keyed by logical key: accept a KeyCodec.KeySlice as a seek key, to avoid
+    // allocating a copy of the logical key on each lookup
+    private static class LogicalKeyByteArrayDataType extends ValueByteArrayDataType {
+
+        @Override
+        public int compare(Object a, Object b) {
+            if (a instanceof KeyCodec.KeySlice) {
+                KeyCodec.KeySlice sa = (KeyCodec.KeySlice) a;
+                byte[] bb = (byte[]) b;
+                return KeyCodec.compareBytes(sa.array, sa.offset, sa.length, bb, 0, bb.length);
+            } else if (b instanceof KeyCodec.KeySlice) {
+                return -compare(b, a);
+            }
+            return super.compare(a, b);
+        }
+    }
+
+    // 8 bytes time, compared as a long, then the logical key
+    private static class ExpiryKeyByteArrayDataType extends ValueByteArrayDataType {
+
+        @Override
+        public int compare(Object a, Object b) {
+            byte[] ba = (byte[]) a;
+            byte[] bb = (byte[]) b;
+            int comparison = Long.compare(KeyCodec.getLong(ba, 0), KeyCodec.getLong(bb, 0));
+            if (comparison != 0) {
+                return comparison;
+            }
+            return KeyCodec.compareBytes(ba, Long.BYTES, ba.length - Long.BYTES, bb, Long.BYTES, bb.length - Long.BYTES);
+        }
+    }
+
     private static class ValueByteArrayDataType implements DataType {
 
         @Override
         public int compare(Object a, Object b) {
             byte[] ba = (byte[]) a;
             byte[] bb = (byte[]) b;
-            return ByteBuffer.wrap(ba).compareTo(ByteBuffer.wrap(bb));
+            return KeyCodec.compareBytes(ba, ba.length, bb, bb.length);
         }
 
         @Override
@@ -165,34 +666,605 @@ public class SyncKVTable {
     }
 
     List<Map.Entry<byte[], byte[]>> dumpTable() {
-        return table.keySet().stream().map(k -> new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(k, table.get(k))).collect(Collectors.toList());
+        List<Map.Entry<byte[], byte[]>> res = new ArrayList<>();
+        Cursor<byte[], byte[]> cursor = table.cursor(null);
+        while (cursor.hasNext()) {
+            byte[] k = cursor.next();
+            res.add(new AbstractMap.SimpleImmutableEntry<>(k, cursor.getValue()));
+        }
+        return res;
     }
 
-    void collectOldKeys() {
-        byte[] previousKey = null;
-        int count = 0;
-        for(byte[] key : table.keySet()) {
-            if (sameKeyIgnoringMetadata(previousKey, key)) {
-                count++;
-                deleteRawKV(previousKey);
+    /**
+     * Remove the old versions of at most maxKeys logical keys taken from the dirty key log, with a single commit.
+     * The processed keys are removed from the log in the same commit: if interrupted, the compaction resume from
+     * the keys that are still in the log.
+     *
+     * @param maxKeys
+     * @return the number of processed logical keys, 0 if there is nothing left to compact
+     */
+    synchronized int compactOldVersions(int maxKeys) {
+        int processed = 0;
+        int removed = 0;
+        Iterator<byte[]> it = dirty.keyIterator(null);
+        while (processed < maxKeys && it.hasNext()) {
+            byte[] logicalKey = it.next();
+            // a concurrent write of the same key could add it again in the log, the stripe must be held
+            Lock stripe = stripeFor(KeyCodec.floorKey(logicalKey));
+            stripe.lock();
+            try {
+                removed += removeOldVersions(logicalKey);
+                dirty.remove(logicalKey);
+            } finally {
+                stripe.unlock();
             }
-            previousKey = key;
+            processed++;
         }
-        int finalCount = count;
-        LOGGER.log(Level.FINE, () -> "in table " + tableName + ": removed " + finalCount + " keys");
+        if (processed > 0) {
+            commit();
+        }
+        int finalProcessed = processed;
+        int finalRemoved = removed;
+        LOGGER.log(Level.FINE, () -> "in table " + tableName + ": compacted " + finalProcessed + " keys, removed " + finalRemoved + " old versions");
+        return processed;
+    }
+
+    private int removeOldVersions(byte[] logicalKey) {
+        byte[] latestKey = latest.get(logicalKey);
+        if (latestKey == null) {
+            return 0;
+        }
+        List<byte[]> oldVersions = new ArrayList<>();
+        Iterator<byte[]> versions = table.keyIterator(KeyCodec.floorKey(logicalKey));
+        while (versions.hasNext()) {
+            byte[] version = versions.next();
+            if (compareKey(version, latestKey) >= 0) {
+                break;
+            }
+            oldVersions.add(version);
+        }
+        for (byte[] version : oldVersions) {
+            table.remove(version);
+        }
+        return oldVersions.size();
+    }
+
+    /**
+     * Set a time to live to the keys of the table, computed from the time of their latest version: the expired keys
+     * are hidden from get/keys/scan and are removed in background. The expired versions received from the other
+     * nodes are ignored, thus the time to live must be the same on all the nodes. The setting is persisted.
+     *
+     * Note that {@link #count()} include the expired keys until they are removed.
+     *
+     * @param timeToLive the time to live, 0 for disabling it
+     * @param unit
+     */
+    public synchronized void setTimeToLive(long timeToLive, TimeUnit unit) {
+        long millis = unit.toMillis(timeToLive);
+        withAllStripes(() -> {
+            expiry.clear();
+            if (millis > 0) {
+                for (byte[] rawKey : latest.values()) {
+                    expiry.put(expiryKey(rawKey), DIRTY_MARKER);
+                }
+            }
+            this.timeToLive = millis;
+            meta.put(META_TIME_TO_LIVE, millis);
+        });
+        commit();
+    }
+
+    /**
+     * Compress the values written locally whose size is at least thresholdBytes. The values are replicated and
+     * synchronized compressed, the other nodes store them as they are. The values that are not reduced by the codec
+     * are stored as they are. The setting is persisted.
+     *
+     * @param codecName "deflate", or the name of a {@link ValueCodec} registered with the ServiceLoader
+     * @param thresholdBytes
+     */
+    public synchronized void enableCompression(String codecName, int thresholdBytes) {
+        ValueCodec codec = ValueCodecs.byName(codecName);
+        this.compressionThreshold = thresholdBytes;
+        this.compressionCodec = codec;
+        meta.put(META_COMPRESSION_CODEC, codecName);
+        meta.put(META_COMPRESSION_THRESHOLD, thresholdBytes);
+        store.tryCommit();
+    }
+
+    /**
+     * Stop compressing the new values, the compressed values already present are still readable.
+     */
+    public synchronized void disableCompression() {
+        this.compressionCodec = null;
+        meta.remove(META_COMPRESSION_CODEC);
+        meta.remove(META_COMPRESSION_THRESHOLD);
+        store.tryCommit();
+    }
+
+    /**
+     * Statistics of the values written in this table since it has been opened, locally and by the other nodes.
+     *
+     * @return
+     */
+    public CompressionStats getCompressionStats() {
+        return new CompressionStats(encodedValueCount.sum(), plainValueCount.sum(), originalBytes.sum(), storedBytes.sum());
+    }
+
+    // the value encoded with the codec of the table, null if it must be stored as it is
+    private byte[] encodeValue(byte[] value) {
+        ValueCodec codec = compressionCodec;
+        return codec != null && value.length >= compressionThreshold ? ValueCodecs.encode(codec, value) : null;
+    }
+
+    // see KeyCodec for the structure of the key
+    private KV newKV(String key, long timestamp, byte[] value, byte[] encodedValue) {
+        if (encodedValue != null) {
+            return new KV(KeyCodec.encode(key, timestamp, clock.getNodeId(), true), encodedValue);
+        }
+        return new KV(KeyCodec.encode(key, timestamp, clock.getNodeId()), value);
+    }
+
+    // the timestamp of a new local version of the key must be newer than the latest stored one, the clock may be
+    // behind it, see HybridLogicalClock#nowAfter
+    private long storedTimestamp(String key) {
+        byte[] latestKey = latest.get(KeyCodec.logicalKeySlice(key));
+        if (latestKey == null) {
+            return Long.MIN_VALUE;
+        }
+        // at the same millisecond, a legacy version is older than a version in the current format
+        return KeyCodec.isHlc(latestKey) ? KeyCodec.hlcTimestamp(latestKey) : HybridLogicalClock.timestamp(KeyCodec.physicalTime(latestKey), 0) - 1;
+    }
+
+    // the value as stored, decoded if needed
+    static byte[] decodeValue(byte[] rawKey, byte[] storedValue) {
+        if (storedValue == null || rawKey == null || !KeyCodec.hasEncodedValue(rawKey)) {
+            return storedValue;
+        }
+        return ValueCodecs.decode(storedValue);
+    }
+
+    public long getTimeToLive(TimeUnit unit) {
+        return unit.convert(timeToLive, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isExpired(byte[] rawKey) {
+        long ttl = timeToLive;
+        return ttl > 0 && KeyCodec.physicalTime(rawKey) + ttl <= System.currentTimeMillis();
+    }
+
+    private static byte[] expiryKey(byte[] rawKey) {
+        int offset = KeyCodec.logicalOffset(rawKey);
+        int length = KeyCodec.logicalLength(rawKey);
+        byte[] res = new byte[Long.BYTES + length];
+        KeyCodec.putLong(res, 0, KeyCodec.physicalTime(rawKey));
+        System.arraycopy(rawKey, offset, res, Long.BYTES, length);
+        return res;
     }
 
+    /**
+     * Remove all the versions of at most maxKeys expired keys, with a single commit.
+     *
+     * @param maxKeys
+     * @return the number of removed logical keys
+     */
+    synchronized int reapExpired(int maxKeys) {
+        long ttl = timeToLive;
+        if (ttl <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<byte[]> it = expiry.keyIterator(null);
+        while (removed < maxKeys && it.hasNext()) {
+            byte[] expiryKey = it.next();
+            if (KeyCodec.getLong(expiryKey, 0) + ttl > now) {
+                break;
+            }
+            byte[] logicalKey = Arrays.copyOfRange(expiryKey, Long.BYTES, expiryKey.length);
+            Lock stripe = stripeFor(KeyCodec.floorKey(logicalKey));
+            stripe.lock();
+            try {
+                byte[] latestKey = latest.get(logicalKey);
+                // a newer version may have been written concurrently, it has its own entry in the queue
+                if (latestKey != null && isExpired(latestKey)) {
+                    List<byte[]> versions = new ArrayList<>();
+                    Iterator<byte[]> versionIt = table.keyIterator(KeyCodec.floorKey(logicalKey));
+                    while (versionIt.hasNext()) {
+                        byte[] version = versionIt.next();
+                        if (!KeyCodec.sameLogicalKey(version, latestKey)) {
+                            break;
+                        }
+                        versions.add(version);
+                    }
+                    versions.forEach(table::remove);
+                    latest.remove(logicalKey);
+                    dirty.remove(logicalKey);
+                    onLatestChanged(latestKey, null);
+                    removed++;
+                }
+                expiry.remove(expiryKey);
+            } finally {
+                stripe.unlock();
+            }
+        }
+        if (removed > 0) {
+            commit();
+        }
+        int finalRemoved = removed;
+        LOGGER.log(Level.FINE, () -> "in table " + tableName + ": removed " + finalRemoved + " expired keys");
+        return removed;
+    }
+
+    int dirtyKeyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Enable a cache of the latest value of each key, bounded by the given size in bytes. The cache use a segmented
+     * LRU eviction policy, thus a single scan over many keys does not evict the frequently accessed ones.
+     *
+     * @param maxBytes
+     */
+    public synchronized void enableValueCache(long maxBytes) {
+        this.valueCache = new ValueCache(maxBytes);
+    }
+
+    public synchronized void disableValueCache() {
+        this.valueCache = null;
+    }
+
+    /**
+     * Statistics of the value cache, null if not enabled.
+     *
+     * @return
+     */
+    public ValueCacheStats getValueCacheStats() {
+        ValueCache cache = valueCache;
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Enable the negative lookup filter: when a key is not present locally, {@link #get(String)} will not ask the
+     * other members of the cluster if the key is known to be absent everywhere. A bloom filter of the keys is
+     * exchanged between the members during the synchronization, and the keys reported as absent by the other
+     * members are cached for the given duration.
+     *
+     * The parameters must be the same on all the members, as only the filters with the same size can be merged.
+     *
+     * @param expectedKeys the expected number of keys in the table
+     * @param falsePositiveRate the false positive rate of the bloom filter at the expected number of keys
+     * @param negativeCacheTtl how long a key reported as absent will be considered absent, 0 for disabling the cache
+     * @param unit unit of negativeCacheTtl
+     */
+    public synchronized void enableNegativeLookupFilter(int expectedKeys, double falsePositiveRate, long negativeCacheTtl, TimeUnit unit) {
+        NegativeLookupFilter filter = new NegativeLookupFilter(expectedKeys, falsePositiveRate, unit.toNanos(negativeCacheTtl));
+        // published before the scan, so the keys added concurrently are not missed
+        this.negativeLookupFilter = filter;
+        for (byte[] rawKey : latest.values()) {
+            filter.add(rawKey);
+        }
+    }
+
+    public synchronized void disableNegativeLookupFilter() {
+        this.negativeLookupFilter = null;
+    }
+
+    public boolean isNegativeLookupFilterEnabled() {
+        return negativeLookupFilter != null;
+    }
+
+    NegativeLookupFilter.Export exportNegativeLookupFilter() {
+        NegativeLookupFilter filter = negativeLookupFilter;
+        return filter != null && rpcFacade != null ? filter.export(rpcFacade.getCurrentMember(), rpcFacade.getViewId()) : null;
+    }
+
+    void mergeNegativeLookupFilter(NegativeLookupFilter.Export remote) {
+        NegativeLookupFilter filter = negativeLookupFilter;
+        if (filter != null && rpcFacade != null && !filter.merge(remote, rpcFacade.getViewId())) {
+            LOGGER.log(Level.FINE, () -> "in table " + tableName + ": ignored incompatible negative lookup filter");
+        }
+    }
+
+    /**
+     * Count of the keys, the count is maintained on each write.
+     *
+     * @return
+     */
     public int count() {
-        int count = 0;
-        Iterator<String> keys = keys();
-        while(keys.hasNext()) {
-            keys.next();
+        return keyCount.intValue();
+    }
+
+    /**
+     * Count of the keys that start with the given prefix. If the prefix has been declared with
+     * {@link #declarePrefixCounter(String)}, the maintained count is returned, else the matching keys are scanned.
+     *
+     * @param prefix
+     * @return
+     */
+    public int count(String prefix) {
+        PrefixCounter counter = prefixCounters.get(prefix);
+        if (counter != null) {
+            return (int) counter.count.get();
+        }
+        return (int) countByScan(prefix.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Declare a prefix for which the count of matching keys will be maintained on each write.
+     * The declaration is persisted.
+     *
+     * @param prefix
+     */
+    public synchronized void declarePrefixCounter(String prefix) {
+        if (prefixCounters.containsKey(prefix)) {
+            return;
+        }
+        PrefixCounter counter = new PrefixCounter(prefix, 0);
+        // the writes are blocked while counting, so no change can be missed
+        withAllStripes(() -> {
+            counter.count.set(countByScan(counter.prefixBytes));
+            counter.changed.set(true);
+            prefixCounters.put(prefix, counter);
+        });
+        commit();
+    }
+
+    /**
+     * Remove a prefix declared with {@link #declarePrefixCounter(String)}.
+     *
+     * @param prefix
+     */
+    public synchronized void removePrefixCounter(String prefix) {
+        PrefixCounter counter = prefixCounters.remove(prefix);
+        if (counter != null) {
+            synchronized (flushLock) {
+                meta.remove(META_PREFIX_COUNT + prefix);
+            }
+            store.tryCommit();
+        }
+    }
+
+    /**
+     * Declare a secondary index: the index value is extracted from the latest value of each key with the given
+     * function, null if the key must not be indexed. The index is maintained on each write, local or replicated.
+     *
+     * The index content is persisted, the extractor must be declared again after each open. If the index is new, it is
+     * built in background. After a restart, it is ready as soon as it is declared, unless the table has been written
+     * before the declaration or has not been closed cleanly: as these writes have not been indexed, the index is
+     * checked against the table in background. Until then the lookups scan the table.
+     *
+     * @param name
+     * @param extractor
+     */
+    synchronized void declareIndex(String name, Function<byte[], String> extractor) {
+        if (indexes.containsKey(name)) {
+            return;
+        }
+        String mapName = indexMapPrefix(tableName) + name;
+        MVMap.Builder<byte[], byte[]> b = new MVMap.Builder<>();
+        b.setKeyType(LOGICAL_KEY_TYPE);
+        b.setValueType(TABLE_VALUE_TYPE);
+        MVMap.Builder<byte[], byte[]> k = new MVMap.Builder<>();
+        k.setKeyType(LOGICAL_KEY_TYPE);
+        k.setValueType(TABLE_VALUE_TYPE);
+        MVMap<byte[], byte[]> values = store.openMap(mapName, b);
+        MVMap<byte[], byte[]> keys = store.openMap(mapName + ".keys", k);
+        TableIndex[] declared = new TableIndex[1];
+        // the state is read and the index registered without concurrent writes: a write is either done before,
+        // and has invalidated the state, or after, and is indexed. Registered before the build, so the writes done
+        // during the build are indexed too
+        withAllStripes(() -> {
+            declared[0] = new TableIndex(name, extractor, values, keys, meta.containsKey(META_INDEX + name));
+            indexes.put(name, declared[0]);
+        });
+        TableIndex index = declared[0];
+        if (!index.isReady()) {
+            Thread builder = new Thread(() -> buildIndex(index), "synckv-index-" + tableName + "-" + name);
+            builder.setDaemon(true);
+            index.builder = builder;
+            builder.start();
+        }
+    }
+
+    private void buildIndex(TableIndex index) {
+        long count = 0;
+        try {
+            Iterator<byte[]> it = latest.keyIterator(null);
+            while (it.hasNext() && !Thread.currentThread().isInterrupted()) {
+                byte[] logicalKey = it.next();
+                Lock stripe = stripeFor(KeyCodec.floorKey(logicalKey));
+                stripe.lock();
+                try {
+                    byte[] latestKey = latest.get(logicalKey);
+                    index.update(logicalKey, latestKey != null ? decodeValue(latestKey, table.get(latestKey)) : null);
+                } finally {
+                    stripe.unlock();
+                }
+                if (++count % INDEX_BUILD_BATCH_SIZE == 0) {
+                    commit();
+                }
+            }
+            // keys removed while the index was not declared
+            Iterator<byte[]> indexed = index.indexedKeys();
+            while (indexed.hasNext() && !Thread.currentThread().isInterrupted()) {
+                byte[] logicalKey = indexed.next();
+                Lock stripe = stripeFor(KeyCodec.floorKey(logicalKey));
+                stripe.lock();
+                try {
+                    if (!latest.containsKey(logicalKey)) {
+                        index.update(logicalKey, null);
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+            if (Thread.currentThread().isInterrupted() || indexes.get(index.getName()) != index) {
+                return;
+            }
+            synchronized (flushLock) {
+                meta.put(META_INDEX + index.getName(), Boolean.TRUE);
+            }
+            commit();
+            index.setReady();
+            long finalCount = count;
+            LOGGER.log(Level.INFO, () -> "in table " + tableName + ": built index " + index.getName() + " over " + finalCount + " keys");
+        } catch (IllegalStateException e) {
+            // the store has been closed, the build will restart on the next open
+            LOGGER.log(Level.FINE, e, () -> "in table " + tableName + ": build of index " + index.getName() + " interrupted");
+        }
+    }
+
+    /**
+     * Remove an index declared with {@link #declareIndex(String, Function)} and its content.
+     *
+     * @param name
+     */
+    synchronized void removeIndex(String name) {
+        TableIndex index = indexes.remove(name);
+        if (index == null) {
+            return;
+        }
+        stopBuild(index);
+        String mapName = indexMapPrefix(tableName) + name;
+        store.removeMap(mapName);
+        store.removeMap(mapName + ".keys");
+        synchronized (flushLock) {
+            meta.remove(META_INDEX + name);
+        }
+        store.tryCommit();
+    }
+
+    boolean isIndexReady(String name) {
+        TableIndex index = indexes.get(name);
+        return index != null && index.isReady();
+    }
+
+    /**
+     * Stop the index builds running in background, called before closing the store.
+     */
+    void stopIndexBuilds() {
+        indexes.values().forEach(SyncKVTable::stopBuild);
+    }
+
+    private static void stopBuild(TableIndex index) {
+        Thread builder = index.builder;
+        if (builder != null) {
+            builder.interrupt();
+            try {
+                builder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Keys with the given index value, with their latest value. While the index is being built, the table is scanned.
+     *
+     * @param name
+     * @param indexValue
+     * @return
+     */
+    Iterator<Map.Entry<String, byte[]>> findByIndex(String name, String indexValue) {
+        TableIndex index = indexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("index " + name + " is not declared in table " + tableName);
+        }
+        if (!index.isReady()) {
+            Iterator<Map.Entry<String, byte[]>> all = latestEntries(null, logicalKey -> true);
+            return filter(all, e -> indexValue.equals(index.extract(e.getValue())));
+        }
+        Iterator<byte[]> logicalKeys = index.logicalKeys(indexValue);
+        Iterator<Map.Entry<String, byte[]>> res = new Iterator<Map.Entry<String, byte[]>>() {
+            @Override
+            public boolean hasNext() {
+                return logicalKeys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                byte[] logicalKey = logicalKeys.next();
+                byte[] rawKey = latest.get(logicalKey);
+                byte[] value = rawKey == null || isExpired(rawKey) ? null : decodeValue(rawKey, table.get(rawKey));
+                return new AbstractMap.SimpleImmutableEntry<>(new String(logicalKey, StandardCharsets.UTF_8), value);
+            }
+        };
+        // the key may have been removed or changed since the index lookup
+        return filter(res, e -> e.getValue() != null && indexValue.equals(index.extract(e.getValue())));
+    }
+
+    private static <E> Iterator<E> filter(Iterator<E> it, Predicate<E> predicate) {
+        return new Iterator<E>() {
+
+            private E next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    E candidate = it.next();
+                    if (predicate.test(candidate)) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                E res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    private long countByScan(byte[] prefix) {
+        long count = 0;
+        Iterator<byte[]> it = latest.keyIterator(prefix);
+        while (it.hasNext() && startsWith(it.next(), prefix)) {
             count++;
         }
         return count;
     }
 
+    static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class PrefixCounter {
+        final String prefix;
+        final byte[] prefixBytes;
+        final AtomicLong count;
+        final AtomicBoolean changed = new AtomicBoolean();
+
+        PrefixCounter(String prefix, long count) {
+            this.prefix = prefix;
+            this.prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+            this.count = new AtomicLong(count);
+        }
+
+        // the raw key contains the metadata, the prefix must match only the logical part
+        boolean matches(byte[] rawKey) {
+            return KeyCodec.logicalKeyStartsWith(rawKey, prefixBytes);
+        }
+    }
+
     Iterator<byte[]> rawKeys() {
+        return withoutExpired(latestRawKeys(), k -> k);
+    }
+
+    private Iterator<byte[]> latestRawKeys() {
         PushbackIterator<byte[]> bi = new PushbackIterator<>(table.keyIterator(null));
 
         return new Iterator<byte[]>() {
@@ -221,6 +1293,304 @@ public class SyncKVTable {
         };
     }
 
+    /**
+     * Iterate over the keys between fromKey (inclusive) and toKey (exclusive), with their latest value.
+     * The keys are ordered by their utf-8 representation, compared as signed bytes. The cost is proportional to
+     * the number of keys returned, not to the size of the table.
+     *
+     * @param fromKey the start bound, null for starting at the first key
+     * @param toKey the end bound, null for iterating until the last key
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan(String fromKey, String toKey) {
+        byte[] to = toKey != null ? toKey.getBytes(StandardCharsets.UTF_8) : null;
+        return latestEntries(fromKey != null ? fromKey.getBytes(StandardCharsets.UTF_8) : null,
+                logicalKey -> to == null || KeyCodec.compareBytes(logicalKey, logicalKey.length, to, to.length) < 0);
+    }
+
+    /**
+     * Iterate over the keys that start with the given prefix, with their latest value.
+     *
+     * @param prefix
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        byte[] from = prefix.getBytes(StandardCharsets.UTF_8);
+        return latestEntries(from, logicalKey -> startsWith(logicalKey, from));
+    }
+
+    private Iterator<Map.Entry<String, byte[]>> latestEntries(byte[] from, Predicate<byte[]> continueWhile) {
+        return latestEntries(latest, table, this::isExpired, from, continueWhile);
+    }
+
+    // seek the latest version index at the start bound, then fetch the value of each selected version
+    static Iterator<Map.Entry<String, byte[]>> latestEntries(MVMap<byte[], byte[]> latest, MVMap<byte[], byte[]> table, Predicate<byte[]> isExpired,
+                                                              byte[] from, Predicate<byte[]> continueWhile) {
+        Cursor<byte[], byte[]> cursor = latest.cursor(from);
+        return new Iterator<Map.Entry<String, byte[]>>() {
+
+            private Map.Entry<String, byte[]> next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && !done) {
+                    if (!cursor.hasNext()) {
+                        done = true;
+                        break;
+                    }
+                    byte[] logicalKey = cursor.next();
+                    if (!continueWhile.test(logicalKey)) {
+                        done = true;
+                        break;
+                    }
+                    byte[] rawKey = cursor.getValue();
+                    byte[] value = isExpired.test(rawKey) ? null : decodeValue(rawKey, table.get(rawKey));
+                    if (value != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(new String(logicalKey, StandardCharsets.UTF_8), value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, byte[]> res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    /**
+     * Iterate over all the keys with their latest value, in a single pass over the table.
+     *
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> entries() {
+        return decodedEntries(rawEntries());
+    }
+
+    static Iterator<Map.Entry<String, byte[]>> decodedEntries(Iterator<KV> it) {
+        return new Iterator<Map.Entry<String, byte[]>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, byte[]> next() {
+                KV kv = it.next();
+                return new AbstractMap.SimpleImmutableEntry<>(KeyCodec.logicalKeyString(kv.k), decodeValue(kv.k, kv.v));
+            }
+        };
+    }
+
+    // the versions of a key are contiguous and sorted: the latest one is the last before the next logical key.
+    // The value is read from the cursor, thus there is no additional lookup.
+    Iterator<KV> rawEntries() {
+        return withoutExpired(latestRawEntries(table), kv -> kv.k);
+    }
+
+    private <T> Iterator<T> withoutExpired(Iterator<T> it, Function<T, byte[]> rawKey) {
+        if (timeToLive <= 0) {
+            return it;
+        }
+        return withoutExpired(it, rawKey, this::isExpired);
+    }
+
+    static <T> Iterator<T> withoutExpired(Iterator<T> it, Function<T, byte[]> rawKey, Predicate<byte[]> isExpired) {
+        return new Iterator<T>() {
+
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    T candidate = it.next();
+                    if (!isExpired.test(rawKey.apply(candidate))) {
+                        next = candidate;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    static Iterator<KV> latestRawEntries(MVMap<byte[], byte[]> table) {
+        Cursor<byte[], byte[]> cursor = table.cursor(null);
+        return new Iterator<KV>() {
+
+            private byte[] pendingKey;
+            private byte[] pendingValue;
+
+            @Override
+            public boolean hasNext() {
+                return pendingKey != null || cursor.hasNext();
+            }
+
+            @Override
+            public KV next() {
+                if (pendingKey == null) {
+                    if (!cursor.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    pendingKey = cursor.next();
+                    pendingValue = cursor.getValue();
+                }
+                while (cursor.hasNext()) {
+                    byte[] nextKey = cursor.next();
+                    byte[] nextValue = cursor.getValue();
+                    if (!KeyCodec.sameLogicalKey(pendingKey, nextKey)) {
+                        KV res = new KV(pendingKey, pendingValue);
+                        pendingKey = nextKey;
+                        pendingValue = nextValue;
+                        return res;
+                    }
+                    pendingKey = nextKey;
+                    pendingValue = nextValue;
+                }
+                KV res = new KV(pendingKey, pendingValue);
+                pendingKey = null;
+                pendingValue = null;
+                return res;
+            }
+        };
+    }
+
+    /**
+     * Spliterator over all the keys with their latest value, see {@link #entries()}. It can be split in key ranges,
+     * so it can be used for a parallel stream.
+     *
+     * @return
+     */
+    public Spliterator<Map.Entry<String, byte[]>> spliterator() {
+        return new EntrySpliterator(null, null);
+    }
+
+    /**
+     * Iterate the raw keys in [from, to). The bounds are always the first version of a logical key (or null), thus
+     * all the versions of a logical key are in the same range and the latest one can be selected locally.
+     *
+     * The bounds are keys, not positions: the table can be modified concurrently, the iteration is weakly consistent.
+     */
+    private class EntrySpliterator implements Spliterator<Map.Entry<String, byte[]>> {
+
+        // below this number of versions, the range is not split anymore
+        private static final long MIN_SPLIT_SIZE = 1024;
+
+        private byte[] from;
+        private final byte[] to;
+        private Cursor<byte[], byte[]> cursor;
+        private byte[] pendingKey;
+        private byte[] pendingValue;
+
+        EntrySpliterator(byte[] from, byte[] to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private long position(byte[] key, long defaultValue) {
+            if (key == null) {
+                return defaultValue;
+            }
+            long index = table.getKeyIndex(key);
+            return index >= 0 ? index : -(index + 1);
+        }
+
+        @Override
+        public Spliterator<Map.Entry<String, byte[]>> trySplit() {
+            if (cursor != null) {
+                return null;
+            }
+            long lo = position(from, 0);
+            long hi = position(to, table.sizeAsLong());
+            if (hi - lo < MIN_SPLIT_SIZE) {
+                return null;
+            }
+            byte[] middle = table.getKey(lo + (hi - lo) / 2);
+            if (middle == null) {
+                return null;
+            }
+            // align the boundary on the first version of the logical key, or on the next logical key
+            byte[] middleLogicalKey = logicalKey(middle);
+            byte[] boundary = table.ceilingKey(KeyCodec.floorKey(middleLogicalKey));
+            if (boundary != null && from != null && compareKey(boundary, from) <= 0) {
+                boundary = table.higherKey(KeyCodec.ceilKey(middleLogicalKey));
+            }
+            if (boundary == null || (to != null && compareKey(boundary, to) >= 0)) {
+                return null;
+            }
+            EntrySpliterator prefix = new EntrySpliterator(from, boundary);
+            from = boundary;
+            return prefix;
+        }
+
+        private boolean nextRaw() {
+            if (!cursor.hasNext()) {
+                return false;
+            }
+            byte[] key = cursor.next();
+            if (to != null && compareKey(key, to) >= 0) {
+                return false;
+            }
+            pendingKey = key;
+            pendingValue = cursor.getValue();
+            return true;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<String, byte[]>> action) {
+            if (cursor == null) {
+                cursor = table.cursor(from);
+                if (!nextRaw()) {
+                    pendingKey = null;
+                }
+            }
+            while (pendingKey != null) {
+                byte[] key = pendingKey;
+                byte[] value = pendingValue;
+                pendingKey = null;
+                while (nextRaw()) {
+                    if (!KeyCodec.sameLogicalKey(key, pendingKey)) {
+                        break;
+                    }
+                    key = pendingKey;
+                    value = pendingValue;
+                    pendingKey = null;
+                }
+                if (!isExpired(key)) {
+                    action.accept(new AbstractMap.SimpleImmutableEntry<>(KeyCodec.logicalKeyString(key), decodeValue(key, value)));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long estimateSize() {
+            return cursor != null ? Long.MAX_VALUE : position(to, table.sizeAsLong()) - position(from, 0);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+
     public Iterator<String> keys() {
         Iterator<byte[]> it = rawKeys();
         return new Iterator<String>() {
@@ -233,45 +1603,132 @@ public class SyncKVTable {
             @Override
             public String next() {
                 byte[] s = it.next();
-                return new String(s, 0, s.length - METADATA_LENGTH, StandardCharsets.UTF_8);
+                return KeyCodec.logicalKeyString(s);
             }
         };
     }
 
-    // the key are structured as:
-    // + is = concatenation
-    //
-    // key.bytes+currentTime+nanoTime+seed
-    public synchronized boolean put(String key, byte[] value) {
-        long currentTime = System.currentTimeMillis();
-        long nanoTime = System.nanoTime();
 
-        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+    public boolean put(String key, byte[] value) {
+        return putAsync(key, value).join();
+    }
 
-        ByteBuffer bf = ByteBuffer.allocate(rawKey.length + METADATA_LENGTH);
-        bf.put(rawKey);
-        //
-        bf.putLong(currentTime);
-        bf.putLong(nanoTime);
-        bf.putInt(random.nextInt());
-        //
+    /**
+     * Put a key/value. When the group commit mode is enabled, the returned future is completed once the batch
+     * containing the write has been committed, otherwise it's already completed. The write is replicated to the
+     * other nodes once committed locally.
+     *
+     * The version is newer than the latest one stored locally, even if the clock is behind it (after a restart for
+     * example).
+     *
+     * @param key
+     * @param value
+     * @return false if a newer version has been written concurrently by another node
+     */
+    public CompletableFuture<Boolean> putAsync(String key, byte[] value) {
+        byte[] encodedValue = encodeValue(value);
+        GroupCommitWriter writer = groupCommit.get();
+        KV kv;
+        boolean added = false;
+        Lock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            kv = newKV(key, clock.nowAfter(storedTimestamp(key)), value, encodedValue);
+            if (writer == null) {
+                added = addIfNewer(kv.k, kv.v);
+            }
+        } finally {
+            stripe.unlock();
+        }
 
-        byte[] finalKey = bf.array();
+        if (writer != null) {
+            // replicated only once committed locally, but not by the writer thread: the sends must not delay the
+            // next batch. The version is already assigned, the order of the replications does not matter
+            return writer.submit(this, Collections.singletonList(kv)).thenApplyAsync(res -> {
+                if (res) {
+                    replicate(kv.k, kv.v);
+                }
+                return res;
+            });
+        }
 
-        addRawKV(finalKey, value);
-        store.tryCommit();
+        commit();
+        if (added) {
+            replicate(kv.k, kv.v);
+        }
+        return CompletableFuture.completedFuture(added);
+    }
+
+    /**
+     * Put all the key/values with a single commit. The entries share the same version metadata and are replicated
+     * to the other nodes as a single message.
+     *
+     * @param values
+     * @return false if a newer version of one of the keys has been written concurrently by another node
+     */
+    public boolean putAll(Map<String, byte[]> values) {
+        if (values.isEmpty()) {
+            return true;
+        }
+
+        // a version written concurrently is ordered by the clock as usual, the stripes are not needed
+        long stored = Long.MIN_VALUE;
+        for (String key : values.keySet()) {
+            stored = Math.max(stored, storedTimestamp(key));
+        }
+        long timestamp = clock.nowAfter(stored);
+        List<KV> kvs = new ArrayList<>(values.size());
+        values.forEach((key, value) -> kvs.add(newKV(key, timestamp, value, encodeValue(value))));
+
+        boolean added = true;
+        GroupCommitWriter writer = groupCommit.get();
+        if (writer != null) {
+            added = writer.submit(this, kvs).join();
+        } else {
+            for (KV kv : kvs) {
+                added &= addRawKV(kv.k, kv.v);
+            }
+            commit();
+        }
 
+        if (rpcFacade != null && !disableSync.get()) {
+            rpcFacade.putAllRequest(table.getName(), kvs);
+        }
+        return added;
+    }
+
+    private void replicate(byte[] finalKey, byte[] value) {
         if (rpcFacade != null && !disableSync.get()) {
             rpcFacade.putRequest(table.getName(), finalKey, value);
         }
+    }
 
-        return true;
+    MVStore getStore() {
+        return store;
     }
 
-    synchronized void deleteRawKV(byte[] key) {
-        tableStats.set(null);
-        table.remove(key);
-        store.tryCommit();
+    void deleteRawKV(byte[] key) {
+        Lock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            table.remove(key);
+            byte[] latestKey = latest.get(KeyCodec.logicalKeySlice(key));
+            if (latestKey != null && compareKey(latestKey, key) == 0) {
+                byte[] logicalKey = logicalKey(key);
+                // the newest version has been removed, fallback to the previous one, if any
+                byte[] previousKey = table.lowerKey(KeyCodec.ceilKey(logicalKey));
+                if (previousKey != null && sameKeyIgnoringMetadata(previousKey, key)) {
+                    latest.put(logicalKey, previousKey);
+                    onLatestChanged(latestKey, previousKey);
+                } else {
+                    latest.remove(logicalKey);
+                    onLatestChanged(latestKey, null);
+                }
+            }
+        } finally {
+            stripe.unlock();
+        }
+        commit();
     }
 
     public boolean put(String key, String value) {
@@ -283,68 +1740,128 @@ public class SyncKVTable {
         return res == null ? null : new String(res, StandardCharsets.UTF_8);
     }
 
-    synchronized void addRawKV(byte[] key, byte[] value) {
-        if (!table.containsKey(key) && !containsNewerKey(key)) {
-            tableStats.set(null);
-            table.put(key, value);
+    // newest version wins: the check and the update are atomic as all the writes of a logical key hold its stripe
+    boolean addRawKV(byte[] key, byte[] value) {
+        // a version written by another node: the next local versions must be newer. A version that the clock refuses
+        // to follow is not stored
+        if (!observe(key)) {
+            return false;
+        }
+        // an expired version sent by a lagging node must not be resurrected
+        if (isExpired(key)) {
+            return false;
+        }
+        Lock stripe = stripeFor(key);
+        stripe.lock();
+        try {
+            return addIfNewer(key, value);
+        } finally {
+            stripe.unlock();
         }
     }
 
-    private boolean containsNewerKey(byte[] rawKey) {
-        //
-        Iterator<byte[]> n = table.keyIterator(rawKey);
-        if(n.hasNext()) {
-            byte[] nextKey = n.next();
-            int adjustedLength = rawKey.length - METADATA_LENGTH;
-            return nextKey.length == rawKey.length && ByteBuffer.wrap(rawKey, 0, adjustedLength).equals(ByteBuffer.wrap(nextKey, 0, adjustedLength));
+    private boolean observe(byte[] key) {
+        return !KeyCodec.isHlc(key) || clock.observe(KeyCodec.hlcTimestamp(key));
+    }
+
+    // must be called while holding the stripe of the key
+    private boolean addIfNewer(byte[] key, byte[] value) {
+        byte[] latestKey = latest.get(KeyCodec.logicalKeySlice(key));
+        if (latestKey != null && compareKey(latestKey, key) >= 0) {
+            return false;
+        }
+        table.put(key, value);
+        latest.put(logicalKey(key), key);
+        onLatestChanged(latestKey, key);
+        if (KeyCodec.hasEncodedValue(key)) {
+            encodedValueCount.increment();
+            originalBytes.add(ValueCodecs.decodedLength(value));
+        } else {
+            plainValueCount.increment();
+            originalBytes.add(value.length);
         }
-        return false;
+        storedBytes.add(value.length);
+        return true;
+    }
+
+    /**
+     * Load sorted key/values, as {@link #addRawKV(byte[], byte[])} does, without commit. The stripes are acquired
+     * once per batch instead of once per key, the writers are blocked only while a batch, already read, is applied.
+     *
+     * @param it sorted raw key/values
+     * @return the number of added versions
+     */
+    long bulkLoad(Iterator<KV> it) {
+        long[] added = new long[1];
+        List<KV> batch = new ArrayList<>(BULK_LOAD_BATCH_SIZE);
+        while (it.hasNext()) {
+            // the source may be a slow stream: it is read before blocking the writers
+            batch.clear();
+            while (batch.size() < BULK_LOAD_BATCH_SIZE && it.hasNext()) {
+                KV kv = it.next();
+                if (observe(kv.k)) {
+                    batch.add(kv);
+                }
+            }
+            withAllStripes(() -> {
+                for (KV kv : batch) {
+                    if (!isExpired(kv.k) && addIfNewer(kv.k, kv.v)) {
+                        added[0]++;
+                    }
+                }
+            });
+        }
+        return added[0];
     }
 
 
     public byte[] get(String key) {
         KV res = get(key, true);
-        return res != null ? res.v : null;
+        return res != null ? decodeValue(res.k, res.v) : null;
     }
 
 
-    //fetching a key, mean that we need to iterate as we may have multiple value for the same key
-    //as the key are sorted, we only need to get the last one that have the same prefix and the same length (adjusted)
+    //fetching a key is a point lookup in the latest version index, followed by the lookup of the versioned key
     KV get(String key, boolean distributed) {
-        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
-
-        int adjustedKeyLength = rawKey.length + METADATA_LENGTH;
-        ByteBuffer keyBb = ByteBuffer.wrap(rawKey);
-
-        //start key
-        ByteBuffer startKey = ByteBuffer.allocate(adjustedKeyLength);
-        startKey.put(rawKey);
-        startKey.put(FLOOR_METADATA);
-
-        Iterator<byte[]> it = table.keyIterator(startKey.array());
-
-        byte[] selectedKey = null;
-
-        while (it.hasNext()) {
-            byte[] candidateKey = it.next();
-
-            if (candidateKey.length == adjustedKeyLength && ByteBuffer.wrap(candidateKey, 0, rawKey.length).compareTo(keyBb) == 0) {
-                selectedKey = candidateKey;
-            } else {
-                break;
+        ValueCache cache = valueCache;
+        if (cache != null) {
+            KV cached = cache.get(key);
+            if (cached != null) {
+                return isExpired(cached.k) ? new KV(null, null) : cached;
             }
         }
 
+        byte[] selectedKey = latest.get(KeyCodec.logicalKeySlice(key));
+        // expired on all the nodes too, no need to ask them
+        if (selectedKey != null && isExpired(selectedKey)) {
+            return new KV(null, null);
+        }
         byte[] res = selectedKey != null ? table.get(selectedKey) : null;
 
+        if (cache != null && res != null) {
+            cache.putIf(key, new KV(selectedKey, res), kv -> {
+                byte[] currentKey = latest.get(KeyCodec.logicalKeySlice(key));
+                return currentKey != null && compareKey(currentKey, kv.k) == 0;
+            });
+        }
+
         //
         if (distributed && res == null && rpcFacade != null && !disableSync.get()) { //try to fetch the value in the cluster if it's not present locally
+            NegativeLookupFilter filter = negativeLookupFilter;
+            if (filter != null && filter.isKnownAbsent(key, rpcFacade.getOtherMembers(), rpcFacade.getViewId())) {
+                return null;
+            }
+
             KV remote = rpcFacade.getValue(table.getName(), key);
 
+            if (filter != null && remote != null && remote.k == null) {
+                filter.markAbsent(key);
+            }
+
             //add value if it's missing
             if (remote != null && remote.k != null) {
                 addRawKV(remote.k, remote.v);
-                store.tryCommit();
+                commit();
             }
             //
             return remote;
@@ -358,42 +1875,99 @@ public class SyncKVTable {
     }
 
     void importRawData(List<KV> tablePayload) {
+        GroupCommitWriter writer = groupCommit.get();
+        if (writer != null) {
+            writer.submit(this, tablePayload).join();
+            return;
+        }
         for (KV kv : tablePayload) {
             addRawKV(kv.k, kv.v);
         }
-        store.tryCommit();
+        commit();
     }
 
-    public <T> SyncKVStructuredTable<T> toStructured(Class<T> clazz, SyncKVStructuredTable.DataConverterFrom<T> from, SyncKVStructuredTable.DataConverterTo<T> to) {
-        return new SyncKVStructuredTable<>(this, from, to);
+    // replicated put from another node, we don't need to wait for the commit
+    void addReplicatedRawKV(byte[] key, byte[] value) {
+        GroupCommitWriter writer = groupCommit.get();
+        if (writer != null) {
+            writer.submit(this, Collections.singletonList(new KV(key, value)));
+        } else {
+            addRawKV(key, value);
+        }
     }
 
-    TableStats getTableStats() {
-        TableStats t = tableStats.get();
-        if (t != null) {
-            LOGGER.log(Level.FINE, () -> "for table stats of " + tableName + " hitting cache");
-            return t;
-        }
+    /**
+     * Consistent read only view of this table, see {@link SyncKV#snapshot(String...)}. The snapshot must be closed.
+     *
+     * @return
+     */
+    public SyncKVSnapshot snapshot() {
+        return SyncKVSnapshot.open(Collections.singletonList(this));
+    }
+
+    /**
+     * Must be called while holding all the stripes, after having registered the usage of the current version of the
+     * store: the maps are opened at the current version, which will not be reclaimed until the usage is released.
+     */
+    SyncKVTableSnapshot openSnapshot(SyncKVSnapshot snapshot, long snapshotTime) {
+        long version = store.getCurrentVersion();
+        return new SyncKVTableSnapshot(snapshot, tableName, latest.openVersion(version), table.openVersion(version), timeToLive, snapshotTime);
+    }
 
-        LOGGER.log(Level.FINE, () -> "for table stats of " + tableName + " must be recomputed!");
+    /**
+     * @param store
+     * @param tableName
+     * @return true if the table, not open, can be read by {@link #openSnapshot(MVStore, String, SyncKVSnapshot, long)}:
+     * its latest version index is trusted only after a clean shutdown
+     */
+    static boolean canSnapshotUnopened(MVStore store, String tableName) {
+        String metaName = META_PREFIX + tableName;
+        return store.hasMap(tableName) && store.hasMap(LATEST_INDEX_PREFIX + tableName) && store.hasMap(metaName)
+                && store.<String, Object>openMap(metaName).containsKey(META_CLEAN_SHUTDOWN);
+    }
 
-        Set<byte[]> l = table.keySet();
-        int hash = 0;
-        int count = 0;
-        for (byte[] k : l) {
-            count++;
-            hash = MurmurHash.hash(k, hash);
-        }
+    /**
+     * Snapshot of a table that is not open, read from its maps as persisted: the table is not opened, so nothing is
+     * rebuilt. Must be called after having registered the usage of the current version of the store, while the table
+     * cannot be opened, see {@link #canSnapshotUnopened(MVStore, String)}.
+     */
+    static SyncKVTableSnapshot openSnapshot(MVStore store, String tableName, SyncKVSnapshot snapshot, long snapshotTime) {
+        long version = store.getCurrentVersion();
+        MVMap.Builder<byte[], byte[]> l = new MVMap.Builder<>();
+        l.setKeyType(LOGICAL_KEY_TYPE);
+        l.setValueType(TABLE_VALUE_TYPE);
+        MVMap<byte[], byte[]> latest = store.openMap(LATEST_INDEX_PREFIX + tableName, l);
+        String metaName = META_PREFIX + tableName;
+        long timeToLive = store.hasMap(metaName) ? (Long) store.<String, Object>openMap(metaName).getOrDefault(META_TIME_TO_LIVE, 0L) : 0L;
+        return new SyncKVTableSnapshot(snapshot, tableName, latest.openVersion(version), openRawTable(store, tableName).openVersion(version), timeToLive, snapshotTime);
+    }
+
+    String getName() {
+        return tableName;
+    }
 
-        t = new TableStats(count, hash);
-        tableStats.set(t);
-        return t;
+    public <T> SyncKVStructuredTable<T> toStructured(Class<T> clazz, SyncKVStructuredTable.DataConverterFrom<T> from, SyncKVStructuredTable.DataConverterTo<T> to) {
+        return new SyncKVStructuredTable<>(this, from, to);
+    }
+
+    /**
+     * Structured view of the table using a converter that works on the stored bytes directly.
+     *
+     * @param clazz
+     * @param converter
+     * @param <T>
+     * @return
+     */
+    public <T> SyncKVStructuredTable<T> toStructured(Class<T> clazz, SyncKVStructuredTable.BufferConverter<T> converter) {
+        return new SyncKVStructuredTable<>(this, converter);
+    }
+
+    TableStats getTableStats() {
+        return new TableStats(keyCount.intValue(), digest.sum());
     }
 
+    // built from the maintained leaves, no scan needed
     TreeSync getTreeSync() {
-        //3**7 = 2187 buckets
-        TreeSync t = new TreeSync((byte) 3, (byte) 7);
-        rawKeys().forEachRemaining(t::add);
-        return t;
+        return treeSyncLeaves.toTreeSync();
     }
 }
@@ -0,0 +1,118 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Read only view of a table in a {@link SyncKVSnapshot}. The keys that have expired at the creation of the snapshot
+ * are not visible. There is no lookup in the other members of the cluster.
+ */
+public final class SyncKVTableSnapshot {
+
+    private final SyncKVSnapshot snapshot;
+    private final String name;
+    private final MVMap<byte[], byte[]> latest;
+    private final MVMap<byte[], byte[]> table;
+    private final long timeToLive;
+    private final long snapshotTime;
+
+    SyncKVTableSnapshot(SyncKVSnapshot snapshot, String name, MVMap<byte[], byte[]> latest, MVMap<byte[], byte[]> table, long timeToLive, long snapshotTime) {
+        this.snapshot = snapshot;
+        this.name = name;
+        this.latest = latest;
+        this.table = table;
+        this.timeToLive = timeToLive;
+        this.snapshotTime = snapshotTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private boolean isExpired(byte[] rawKey) {
+        return timeToLive > 0 && KeyCodec.physicalTime(rawKey) + timeToLive <= snapshotTime;
+    }
+
+    public byte[] get(String key) {
+        snapshot.checkOpen();
+        byte[] rawKey = latest.get(KeyCodec.logicalKeySlice(key));
+        if (rawKey == null || isExpired(rawKey)) {
+            return null;
+        }
+        return SyncKVTable.decodeValue(rawKey, table.get(rawKey));
+    }
+
+    public String getAsString(String key) {
+        byte[] res = get(key);
+        return res == null ? null : new String(res, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Count of the keys, including the expired ones not yet removed.
+     *
+     * @return
+     */
+    public int count() {
+        snapshot.checkOpen();
+        return latest.size();
+    }
+
+    public Iterator<String> keys() {
+        Iterator<Map.Entry<String, byte[]>> it = entries();
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return it.next().getKey();
+            }
+        };
+    }
+
+    /**
+     * See {@link SyncKVTable#entries()}.
+     *
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> entries() {
+        return SyncKVTable.decodedEntries(rawEntries());
+    }
+
+    /**
+     * See {@link SyncKVTable#scan(String, String)}.
+     *
+     * @param fromKey
+     * @param toKey
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> scan(String fromKey, String toKey) {
+        snapshot.checkOpen();
+        byte[] to = toKey != null ? toKey.getBytes(StandardCharsets.UTF_8) : null;
+        return SyncKVTable.latestEntries(latest, table, this::isExpired, fromKey != null ? fromKey.getBytes(StandardCharsets.UTF_8) : null,
+                logicalKey -> to == null || KeyCodec.compareBytes(logicalKey, logicalKey.length, to, to.length) < 0);
+    }
+
+    /**
+     * See {@link SyncKVTable#scanPrefix(String)}.
+     *
+     * @param prefix
+     * @return
+     */
+    public Iterator<Map.Entry<String, byte[]>> scanPrefix(String prefix) {
+        snapshot.checkOpen();
+        byte[] from = prefix.getBytes(StandardCharsets.UTF_8);
+        return SyncKVTable.latestEntries(latest, table, this::isExpired, from, logicalKey -> SyncKVTable.startsWith(logicalKey, from));
+    }
+
+    Iterator<KV> rawEntries() {
+        snapshot.checkOpen();
+        Iterator<KV> it = SyncKVTable.latestRawEntries(table);
+        return timeToLive > 0 ? SyncKVTable.withoutExpired(it, kv -> kv.k, this::isExpired) : it;
+    }
+}
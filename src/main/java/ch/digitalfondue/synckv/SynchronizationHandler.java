@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -92,11 +93,34 @@ class SynchronizationHandler implements Runnable {
                     syncTable(address, tableName, true);
                 }
             });
+
+            local.keySet().forEach(tableName -> {
+                // the filter is enabled at runtime: a table not open has none
+                SyncKVTable table = syncKV.getOpenedTable(tableName);
+                if (table != null && table.isNegativeLookupFilterEnabled()) {
+                    mergeNegativeLookupFilter(address, table, tableName);
+                }
+            });
         } catch (Throwable e) {
             LOGGER.log(Level.WARNING, "Error while calling synchronizeDB", e);
         }
     }
 
+    // merged when the answer arrives, the scheduler thread does not wait for each table of each peer
+    private void mergeNegativeLookupFilter(Address address, SyncKVTable table, String tableName) {
+        CompletableFuture<NegativeLookupFilter.Export> filter = rpcFacade.getNegativeLookupFilter(address, tableName);
+        if (filter == null) {
+            return;
+        }
+        filter.whenComplete((export, e) -> {
+            if (e != null) {
+                LOGGER.log(Level.FINE, e, () -> "not able to fetch the negative lookup filter of table " + tableName + " from " + address);
+            } else if (export != null) {
+                table.mergeNegativeLookupFilter(export);
+            }
+        });
+    }
+
     private void syncTable(Address remote, String tableName, boolean fullSync) {
         try {
             LOGGER.fine(() -> String.format("%s: Need to sync table: %s with remote: %s", syncKV.getClusterMemberName(), tableName, remote)); //TODO better logger msg
@@ -0,0 +1,165 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVMap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal use.
+ * Secondary index of a table: maps the index value extracted from the latest value of each key to the logical key.
+ *
+ * The entries map is keyed by the escaped index value, a 0x00 0x00 terminator and the logical key, thus all the keys
+ * with a given index value are contiguous and found with a single seek. The keys map contains the current entry of
+ * each logical key, so the previous entry can be removed without having to decode the previous value.
+ */
+class TableIndex {
+
+    private final static Logger LOGGER = Logger.getLogger(TableIndex.class.getName());
+
+    private static final byte[] MARKER = new byte[0];
+
+    private final String name;
+    private final Function<byte[], String> extractor;
+    private final MVMap<byte[], byte[]> entries;
+    private final MVMap<byte[], byte[]> keys;
+    private volatile boolean ready;
+    volatile Thread builder;
+
+    TableIndex(String name, Function<byte[], String> extractor, MVMap<byte[], byte[]> entries, MVMap<byte[], byte[]> keys, boolean ready) {
+        this.name = name;
+        this.extractor = extractor;
+        this.entries = entries;
+        this.keys = keys;
+        this.ready = ready;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    void setReady() {
+        this.ready = true;
+    }
+
+    String extract(byte[] value) {
+        try {
+            return extractor.apply(value);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, e, () -> "index " + name + ": not able to extract the index value, the key is not indexed");
+            return null;
+        }
+    }
+
+    /**
+     * Must be called while holding the stripe of the logical key.
+     *
+     * @param logicalKey
+     * @param value the latest value, decoded, null if the key has been removed
+     */
+    void update(byte[] logicalKey, byte[] value) {
+        String indexValue = value != null ? extract(value) : null;
+        byte[] entry = indexValue != null ? entryKey(indexValue, logicalKey) : null;
+        byte[] previousEntry = keys.get(logicalKey);
+        if (Arrays.equals(previousEntry, entry)) {
+            return;
+        }
+        if (previousEntry != null) {
+            entries.remove(previousEntry);
+        }
+        if (entry != null) {
+            entries.put(entry, MARKER);
+            keys.put(logicalKey, entry);
+        } else {
+            keys.remove(logicalKey);
+        }
+    }
+
+    /**
+     * @return the logical keys present in the index
+     */
+    Iterator<byte[]> indexedKeys() {
+        return keys.keyIterator(null);
+    }
+
+    /**
+     * @param indexValue
+     * @return the logical keys with the given index value
+     */
+    Iterator<byte[]> logicalKeys(String indexValue) {
+        byte[] prefix = prefix(indexValue);
+        Iterator<byte[]> it = entries.keyIterator(prefix);
+        return new Iterator<byte[]>() {
+
+            private byte[] next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    byte[] entry = it.hasNext() ? it.next() : null;
+                    if (entry != null && startsWith(entry, prefix)) {
+                        next = Arrays.copyOfRange(entry, prefix.length, entry.length);
+                    } else {
+                        done = true;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    // 0x00 is escaped as 0x00 0x01, so the terminator cannot be part of the value
+    private static byte[] prefix(String indexValue) {
+        byte[] value = indexValue.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream res = new ByteArrayOutputStream(value.length + 2);
+        for (byte b : value) {
+            res.write(b);
+            if (b == 0) {
+                res.write(1);
+            }
+        }
+        res.write(0);
+        res.write(0);
+        return res.toByteArray();
+    }
+
+    private static byte[] entryKey(String indexValue, byte[] logicalKey) {
+        byte[] prefix = prefix(indexValue);
+        byte[] res = Arrays.copyOf(prefix, prefix.length + logicalKey.length);
+        System.arraycopy(logicalKey, 0, res, prefix.length, logicalKey.length);
+        return res;
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
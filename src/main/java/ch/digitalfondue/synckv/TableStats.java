@@ -2,11 +2,22 @@ package ch.digitalfondue.synckv;
 
 import java.io.Serializable;
 
+/**
+ * Internal use.
+ * Key count and order independent hash of a table, exchanged between the nodes at each synchronization round.
+ *
+ * Note: the hash is a long since the incremental digest, the serialized form is not compatible with the previous
+ * releases (int hash): all the nodes must be upgraded together.
+ */
 final class TableStats implements Serializable {
+
+    // bump on each change of the fields, they are part of the wire format
+    private static final long serialVersionUID = 2L;
+
     final int keyCount;
-    final int hash;
+    final long hash;
 
-    TableStats(int keyCount, int hash) {
+    TableStats(int keyCount, long hash) {
         this.keyCount = keyCount;
         this.hash = hash;
     }
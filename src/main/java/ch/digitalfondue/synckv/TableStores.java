@@ -0,0 +1,164 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Internal use.
+ * Resolve the MVStore of each table: the main store, or a dedicated store when {@link StoreSharding} is used.
+ *
+ * In sharded mode, the main store contains only the catalog of the tables with their group. The tables found in the
+ * main store (created in single file mode) are moved to their shard on open.
+ */
+class TableStores implements AutoCloseable {
+
+    private final static Logger LOGGER = Logger.getLogger(TableStores.class.getName());
+
+    private static final String CATALOG = SyncKVTable.INTERNAL_MAP_PREFIX + "shards";
+    private static final int MIGRATION_BATCH_SIZE = 10_000;
+
+    private final String fileName;
+    private final String password;
+    private final SyncKVBuilder tuning;
+    private final MVStore main;
+    private final StoreSharding sharding;
+    // table name -> group name
+    private final MVMap<String, String> catalog;
+    private final Map<String, MVStore> shards = new HashMap<>();
+
+    TableStores(SyncKVBuilder tuning) {
+        this.fileName = tuning.getFileName();
+        this.password = tuning.getPassword();
+        this.sharding = tuning.getSharding();
+        this.tuning = tuning;
+        this.main = open(fileName, tuning.getCacheSizeMB());
+        if (sharding != null) {
+            this.catalog = main.openMap(CATALOG);
+            migrateFromMainStore();
+        } else {
+            this.catalog = null;
+        }
+    }
+
+    private MVStore open(String file, int cacheSizeMB) {
+        MVStore.Builder builder = new MVStore.Builder().fileName(tuning.resolveFileName(file));
+        // the key array is cleared by the store once used
+        if (password != null) {
+            builder.encryptionKey(password.toCharArray());
+        }
+        if (cacheSizeMB > 0) {
+            builder.cacheSize(cacheSizeMB);
+        }
+        if (tuning.getAutoCommitBufferSizeKB() > 0) {
+            builder.autoCommitBufferSize(tuning.getAutoCommitBufferSizeKB());
+        }
+        if (tuning.getPageSplitSize() > 0) {
+            builder.pageSplitSize(tuning.getPageSplitSize());
+        }
+        MVStore store = builder.open();
+        if (tuning.getAutoCommitDelayMillis() > 0) {
+            store.setAutoCommitDelay((int) Math.min(Integer.MAX_VALUE, tuning.getAutoCommitDelayMillis()));
+        }
+        return store;
+    }
+
+    synchronized MVStore storeFor(String tableName) {
+        if (sharding == null) {
+            return main;
+        }
+        String group = catalog.get(tableName);
+        if (group == null) {
+            group = sharding.groupOf(tableName);
+            catalog.put(tableName, group);
+            main.commit();
+        }
+        return shard(group);
+    }
+
+    private MVStore shard(String group) {
+        return shards.computeIfAbsent(group, g -> open(fileName != null ? fileName + ".shard." + encodeFileName(g) : null, sharding.getCacheSizeMB() > 0 ? sharding.getCacheSizeMB() : tuning.getCacheSizeMB()));
+    }
+
+    boolean hasTable(String name) {
+        if (SyncKVTable.isInternalMap(name)) {
+            return false;
+        }
+        return sharding == null ? main.hasMap(name) : catalog.containsKey(name);
+    }
+
+    Set<String> getTableNames() {
+        if (sharding == null) {
+            return main.getMapNames().stream().filter(name -> !SyncKVTable.isInternalMap(name)).collect(Collectors.toSet());
+        }
+        return new HashSet<>(catalog.keySet());
+    }
+
+    private void migrateFromMainStore() {
+        for (String tableName : main.getMapNames()) {
+            if (SyncKVTable.isInternalMap(tableName)) {
+                continue;
+            }
+            MVStore target = shard(sharding.groupOf(tableName));
+            MVMap<byte[], byte[]> source = SyncKVTable.openRawTable(main, tableName);
+            MVMap<byte[], byte[]> destination = SyncKVTable.openRawTable(target, tableName);
+            long count = 0;
+            Cursor<byte[], byte[]> cursor = source.cursor(null);
+            while (cursor.hasNext()) {
+                byte[] key = cursor.next();
+                destination.put(key, cursor.getValue());
+                if (++count % MIGRATION_BATCH_SIZE == 0) {
+                    target.commit();
+                }
+            }
+            SyncKVTable.copySettings(main, target, tableName);
+            target.commit();
+
+            // the settings have been copied, the other internal maps are rebuilt by the table on open
+            main.removeMap(source);
+            for (String internalMap : SyncKVTable.internalMapNames(tableName)) {
+                if (main.hasMap(internalMap)) {
+                    main.removeMap(internalMap);
+                }
+            }
+            String indexMapPrefix = SyncKVTable.indexMapPrefix(tableName);
+            for (String indexMap : new ArrayList<>(main.getMapNames())) {
+                if (indexMap.startsWith(indexMapPrefix)) {
+                    main.removeMap(indexMap);
+                }
+            }
+            catalog.put(tableName, sharding.groupOf(tableName));
+            main.commit();
+            long finalCount = count;
+            LOGGER.log(Level.INFO, () -> "table " + tableName + ": moved " + finalCount + " key/values to its own store");
+        }
+    }
+
+    // keep the file name readable, escape everything else
+    private static String encodeFileName(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.') {
+                sb.append(c);
+            } else {
+                sb.append('_').append(String.format("%02x", b & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (MVStore shard : shards.values()) {
+            shard.close();
+        }
+        main.close();
+    }
+}
@@ -22,13 +22,9 @@ class TableSyncExecutor {
         scheduledExecutor.execute(() -> {
             SyncKVTable table = tableSupplier.apply(tableName);
             List<KV> res = new ArrayList<>();
-            Iterator<byte[]> it = table.rawKeys();
+            Iterator<KV> it = table.rawEntries();
             while (it.hasNext()) {
-                byte[] k = it.next();
-                byte[] v = table.getRawKV(k);
-                if (v != null) {
-                    res.add(new KV(k, v));
-                }
+                res.add(it.next());
                 if (res.size() > 250) {
                     sendRaw.apply(res, false).join();
                     res = new ArrayList<>();
@@ -44,14 +40,11 @@ class TableSyncExecutor {
             TreeSync localTreeSync = localTable.getTreeSync();
             localTreeSync.removeMatchingLeafs(remote);
             List<KV> res = new ArrayList<>();
-            Iterator<byte[]> it = localTable.rawKeys();
+            Iterator<KV> it = localTable.rawEntries();
             while(it.hasNext()) {
-                byte[] key = it.next();
-                if (localTreeSync.isInExistingBucket(key)) {
-                    byte[] value = localTable.getRawKV(key);
-                    if (value != null) {
-                        res.add(new KV(key, localTable.getRawKV(key)));
-                    }
+                KV kv = it.next();
+                if (localTreeSync.isInExistingBucket(kv.k)) {
+                    res.add(kv);
                 }
                 if (res.size() > 250) {
                     sendRaw.apply(res, false).join();
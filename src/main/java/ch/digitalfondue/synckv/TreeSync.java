@@ -31,6 +31,59 @@ class TreeSync implements NodeWithChildPosition {
         return count;
     }
 
+    // the leaf hash is the sum of the hash of the keys, thus it does not depend on the insertion order and
+    // a key can be removed from it
+    static int leafHash(byte[] value) {
+        return MurmurHash.hash(value, 0);
+    }
+
+    // index of the leaf where the value will be added: the path of the leaf read as a number in base "breadth"
+    static int leafIndex(byte depth, byte breadth, byte[] value) {
+        int resultingHash = MurmurHash.hash(ByteBuffer.wrap(value));
+        int index = 0;
+        for (int i = 0; i < depth; i++) {
+            int bucket = Math.abs(resultingHash % breadth);
+            index = index * breadth + bucket;
+            resultingHash = resultingHash - bucket;
+        }
+        return index;
+    }
+
+    static int leafCount(byte depth, byte breadth) {
+        int count = 1;
+        for (int i = 0; i < depth; i++) {
+            count *= breadth;
+        }
+        return count;
+    }
+
+    // add a precomputed leaf, see leafIndex
+    void addLeaf(int leafIndex, int keyCount, int hash) {
+        byte[] path = new byte[depth];
+        for (int i = depth - 1; i >= 0; i--) {
+            path[i] = (byte) (leafIndex % children.length);
+            leafIndex = leafIndex / children.length;
+        }
+
+        count += keyCount;
+        if (children[path[0]] == null) {
+            children[path[0]] = new Node((byte) (depth - 1), (byte) children.length, this);
+        }
+        Node node = children[path[0]];
+        node.count += keyCount;
+        for (int i = 1; i < path.length; i++) {
+            if (node.children == null) {
+                node.children = new Node[children.length];
+            }
+            if (node.children[path[i]] == null) {
+                node.children[path[i]] = new Node((byte) (node.depth - 1), (byte) children.length, node);
+            }
+            node = node.children[path[i]];
+            node.count += keyCount;
+        }
+        node.hash = hash;
+    }
+
     void add(byte[] value) {
         count++;
         ByteBuffer wrapped = ByteBuffer.wrap(value);
@@ -141,7 +194,7 @@ class TreeSync implements NodeWithChildPosition {
         }
 
         private boolean insertValue(ByteBuffer wrapped) {
-            hash = MurmurHash.hash(wrapped.array(), hash);
+            hash += leafHash(wrapped.array());
             return true;
         }
 
@@ -0,0 +1,91 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVMap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Internal use.
+ * Leaves of the {@link TreeSync} of a table, maintained on each write and persisted in a side map, so the tree
+ * can be built without scanning the table.
+ *
+ * The leaves are updated concurrently by the writers, the changed ones are written in the side map by {@link #flush()}.
+ */
+class TreeSyncLeaves {
+
+    //7**3 = 343 leaves
+    static final byte DEPTH = 3;
+    static final byte BREADTH = 7;
+
+    // leaf index -> key count in the high 32 bits, hash in the low 32 bits
+    private final MVMap<Integer, Long> leaves;
+    private final AtomicIntegerArray counts;
+    private final AtomicIntegerArray hashes;
+    private final AtomicIntegerArray changed;
+
+    TreeSyncLeaves(MVMap<Integer, Long> leaves) {
+        this.leaves = leaves;
+        int leafCount = TreeSync.leafCount(DEPTH, BREADTH);
+        this.counts = new AtomicIntegerArray(leafCount);
+        this.hashes = new AtomicIntegerArray(leafCount);
+        this.changed = new AtomicIntegerArray(leafCount);
+        for (Map.Entry<Integer, Long> e : leaves.entrySet()) {
+            long packed = e.getValue();
+            counts.set(e.getKey(), (int) (packed >>> 32));
+            hashes.set(e.getKey(), (int) packed);
+        }
+    }
+
+    void clear() {
+        leaves.clear();
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+            hashes.set(i, 0);
+            changed.set(i, 0);
+        }
+    }
+
+    void add(byte[] key) {
+        update(key, 1);
+    }
+
+    void remove(byte[] key) {
+        update(key, -1);
+    }
+
+    private void update(byte[] key, int delta) {
+        int index = TreeSync.leafIndex(DEPTH, BREADTH, key);
+        counts.addAndGet(index, delta);
+        hashes.addAndGet(index, delta * TreeSync.leafHash(key));
+        changed.set(index, 1);
+    }
+
+    /**
+     * Write the changed leaves in the side map. Must not be called concurrently.
+     */
+    void flush() {
+        for (int i = 0; i < changed.length(); i++) {
+            // the flag is cleared before reading: a concurrent update will be written by the next flush
+            if (changed.getAndSet(i, 0) == 1) {
+                int count = counts.get(i);
+                if (count == 0) {
+                    leaves.remove(i);
+                } else {
+                    leaves.put(i, ((long) count << 32) | (hashes.get(i) & 0xffffffffL));
+                }
+            }
+        }
+    }
+
+    TreeSync toTreeSync() {
+        TreeSync tree = new TreeSync(DEPTH, BREADTH);
+        for (int i = 0; i < counts.length(); i++) {
+            int count = counts.get(i);
+            if (count > 0) {
+                tree.addLeaf(i, count, hashes.get(i));
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,129 @@
+package ch.digitalfondue.synckv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Internal use.
+ * Cache of the latest value of the logical keys of a table, bounded by bytes.
+ *
+ * The eviction policy is a segmented LRU: new entries go in the probation segment and are promoted to the protected
+ * segment on their second hit, so a scan over many keys only evicts entries of the probation segment.
+ */
+class ValueCache {
+
+    // approximate overhead of an entry: the map node, the entry, the KV and the arrays headers
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // access ordered: the first entry is the least recently used one
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    ValueCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = maxBytes * 8 / 10;
+    }
+
+    synchronized KV get(String key) {
+        Entry entry = protectedSegment.get(key);
+        if (entry != null) {
+            hitCount++;
+            return entry.kv;
+        }
+
+        entry = probation.remove(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        probationBytes -= entry.weight;
+        protectedSegment.put(key, entry);
+        protectedBytes += entry.weight;
+        // demote the least recently used protected entries
+        Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+            Map.Entry<String, Entry> lru = it.next();
+            it.remove();
+            protectedBytes -= lru.getValue().weight;
+            probation.put(lru.getKey(), lru.getValue());
+            probationBytes += lru.getValue().weight;
+        }
+        evict();
+        return entry.kv;
+    }
+
+    /**
+     * Add the value in the cache, if the given check is still true while holding the cache lock.
+     * As the invalidation is done after the table update, it ensure that a stale value cannot be added.
+     */
+    synchronized void putIf(String key, KV kv, Predicate<KV> isStillLatest) {
+        if (protectedSegment.containsKey(key) || probation.containsKey(key) || !isStillLatest.test(kv)) {
+            return;
+        }
+        Entry entry = new Entry(kv, ENTRY_OVERHEAD + key.length() * 2 + kv.k.length + kv.v.length);
+        if (entry.weight > maxBytes) {
+            return;
+        }
+        probation.put(key, entry);
+        probationBytes += entry.weight;
+        evict();
+    }
+
+    synchronized void invalidate(String key) {
+        Entry entry = probation.remove(key);
+        if (entry != null) {
+            probationBytes -= entry.weight;
+        }
+        entry = protectedSegment.remove(key);
+        if (entry != null) {
+            protectedBytes -= entry.weight;
+        }
+    }
+
+    synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = probation.values().iterator();
+        while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+            Entry lru = it.next();
+            it.remove();
+            probationBytes -= lru.weight;
+            evictionCount++;
+        }
+    }
+
+    synchronized ValueCacheStats stats() {
+        return new ValueCacheStats(hitCount, missCount, evictionCount, probation.size() + protectedSegment.size(), probationBytes + protectedBytes, maxBytes);
+    }
+
+    private static class Entry {
+        final KV kv;
+        final int weight;
+
+        Entry(KV kv, int weight) {
+            this.kv = kv;
+            this.weight = weight;
+        }
+    }
+}
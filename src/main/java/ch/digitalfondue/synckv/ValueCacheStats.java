@@ -0,0 +1,57 @@
+package ch.digitalfondue.synckv;
+
+/**
+ * Statistics of the value cache of a table, see {@link SyncKVTable#enableValueCache(long)}.
+ */
+public final class ValueCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long entryCount;
+    private final long sizeInBytes;
+    private final long maxSizeInBytes;
+
+    ValueCacheStats(long hitCount, long missCount, long evictionCount, long entryCount, long sizeInBytes, long maxSizeInBytes) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.entryCount = entryCount;
+        this.sizeInBytes = sizeInBytes;
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ValueCacheStats{hits: %d, misses: %d, evictions: %d, entries: %d, size: %d/%d bytes}", hitCount, missCount, evictionCount, entryCount, sizeInBytes, maxSizeInBytes);
+    }
+}
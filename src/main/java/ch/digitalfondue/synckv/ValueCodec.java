@@ -0,0 +1,32 @@
+package ch.digitalfondue.synckv;
+
+/**
+ * Codec used for compressing the values of a table, see {@link SyncKVTable#enableCompression(String, int)}.
+ *
+ * The "deflate" codec is built in, the others are loaded with {@link java.util.ServiceLoader}: declare the
+ * implementation in META-INF/services/ch.digitalfondue.synckv.ValueCodec. As the encoded values are replicated as
+ * they are, the codec must be available on all the nodes.
+ */
+public interface ValueCodec {
+
+    /**
+     * @return the id saved with each encoded value, between 1 and 255. The ids from 1 to 15 are reserved.
+     */
+    int getId();
+
+    /**
+     * @return the name used in {@link SyncKVTable#enableCompression(String, int)}
+     */
+    String getName();
+
+    byte[] encode(byte[] value);
+
+    /**
+     * @param encoded
+     * @param offset start of the encoded data
+     * @param length length of the encoded data
+     * @param decodedLength length of the original value
+     * @return the original value
+     */
+    byte[] decode(byte[] encoded, int offset, int length, int decodedLength);
+}
@@ -0,0 +1,79 @@
+package ch.digitalfondue.synckv;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal use.
+ * Registry of the available {@link ValueCodec}, and structure of an encoded value:
+ * + is = concatenation
+ *
+ * codecId (1 byte)+decodedLength (4 bytes)+encoded data
+ */
+final class ValueCodecs {
+
+    private final static Logger LOGGER = Logger.getLogger(ValueCodecs.class.getName());
+
+    static final int HEADER_LENGTH = 1 + Integer.BYTES;
+
+    private static final Map<Integer, ValueCodec> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, ValueCodec> BY_NAME = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateValueCodec());
+        for (ValueCodec codec : ServiceLoader.load(ValueCodec.class)) {
+            if (codec.getId() <= 15 || codec.getId() > 255) {
+                LOGGER.log(Level.WARNING, () -> "ignored value codec " + codec.getName() + ": the id must be between 16 and 255");
+            } else {
+                register(codec);
+            }
+        }
+    }
+
+    private ValueCodecs() {
+    }
+
+    private static void register(ValueCodec codec) {
+        BY_ID.put(codec.getId(), codec);
+        BY_NAME.put(codec.getName(), codec);
+    }
+
+    static ValueCodec byName(String name) {
+        ValueCodec codec = BY_NAME.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("unknown value codec " + name + ", available: " + BY_NAME.keySet());
+        }
+        return codec;
+    }
+
+    /**
+     * @return the encoded value, or null if the encoding does not reduce the size
+     */
+    static byte[] encode(ValueCodec codec, byte[] value) {
+        byte[] data = codec.encode(value);
+        if (data.length + HEADER_LENGTH >= value.length) {
+            return null;
+        }
+        byte[] res = new byte[HEADER_LENGTH + data.length];
+        res[0] = (byte) codec.getId();
+        KeyCodec.putInt(res, 1, value.length);
+        System.arraycopy(data, 0, res, HEADER_LENGTH, data.length);
+        return res;
+    }
+
+    static byte[] decode(byte[] encoded) {
+        int id = encoded[0] & 0xff;
+        ValueCodec codec = BY_ID.get(id);
+        if (codec == null) {
+            throw new IllegalStateException("the value codec with id " + id + " is not available");
+        }
+        return codec.decode(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH, decodedLength(encoded));
+    }
+
+    static int decodedLength(byte[] encoded) {
+        return KeyCodec.getInt(encoded, 1);
+    }
+}
@@ -0,0 +1,190 @@
+package ch.digitalfondue.synckv;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable buffer used by a {@link SyncKVStructuredTable.BufferConverter} for writing a value.
+ *
+ * The buffer is reused by the table across the put operations of the same thread: the converter must not keep a
+ * reference to it. All the values are written in big endian, as {@link DataOutputStream} does: a value written with the
+ * stream based converter can be read with a {@link ByteBuffer} and vice versa.
+ */
+public final class ValueWriter {
+
+    private static final int INITIAL_CAPACITY = 256;
+    // a buffer that has grown past this size is not kept for the next write
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+    private DataOutputStream dataOutput;
+
+    ValueWriter() {
+    }
+
+    public ValueWriter putByte(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+        return this;
+    }
+
+    public ValueWriter putBoolean(boolean b) {
+        return putByte(b ? 1 : 0);
+    }
+
+    public ValueWriter putShort(int s) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (s >>> 8);
+        buffer[position++] = (byte) s;
+        return this;
+    }
+
+    public ValueWriter putInt(int i) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (i >>> 24);
+        buffer[position++] = (byte) (i >>> 16);
+        buffer[position++] = (byte) (i >>> 8);
+        buffer[position++] = (byte) i;
+        return this;
+    }
+
+    public ValueWriter putLong(long l) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (l >>> shift);
+        }
+        return this;
+    }
+
+    public ValueWriter putDouble(double d) {
+        return putLong(Double.doubleToLongBits(d));
+    }
+
+    public ValueWriter putBytes(byte[] bytes) {
+        return putBytes(bytes, 0, bytes.length);
+    }
+
+    public ValueWriter putBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Write a string in the modified UTF-8 format of {@link DataOutputStream#writeUTF(String)}, without any
+     * intermediate array. Read it back with {@link #getUTF(ByteBuffer)}.
+     *
+     * @param s
+     * @return
+     */
+    public ValueWriter putUTF(String s) {
+        int length = s.length();
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            utfLength += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        if (utfLength > 65535) {
+            throw new IllegalArgumentException(new UTFDataFormatException("encoded string too long: " + utfLength + " bytes"));
+        }
+        putShort(utfLength);
+        ensureCapacity(utfLength);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                buffer[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Read a string written with {@link #putUTF(String)} or {@link DataOutputStream#writeUTF(String)}.
+     *
+     * @param buffer
+     * @return
+     */
+    public static String getUTF(ByteBuffer buffer) {
+        int utfLength = buffer.getShort() & 0xffff;
+        if (buffer.remaining() < utfLength) {
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[utfLength];
+        int count = 0;
+        int end = buffer.position() + utfLength;
+        while (buffer.position() < end) {
+            int c = buffer.get() & 0xff;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                int c2 = buffer.get();
+                chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+            } else if ((c & 0xF0) == 0xE0) {
+                int c2 = buffer.get();
+                int c3 = buffer.get();
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+            } else {
+                throw new IllegalArgumentException("malformed modified UTF-8 input");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return position;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    /**
+     * Stream view used by the adapter of the {@link SyncKVStructuredTable.DataConverterTo} lambdas: the
+     * {@link DataOutputStream} is created once per buffer.
+     */
+    DataOutputStream dataOutput() {
+        if (dataOutput == null) {
+            dataOutput = new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    putByte(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    putBytes(b, off, len);
+                }
+            });
+        }
+        return dataOutput;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    void reset() {
+        position = 0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVStore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class BuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void profileAndOverrides() {
+        File file = new File(folder.getRoot(), "db");
+        try (SyncKV kv = SyncKV.builder()
+                .fileName(file.getAbsolutePath())
+                .profile(SyncKVBuilder.Profile.LOW_LATENCY_READS)
+                .cacheSize(32)
+                .autoCommitDelay(2, TimeUnit.SECONDS)
+                .build()) {
+            SyncKVTable table = kv.getTable("test");
+            table.put("key", "value");
+            Assert.assertEquals("value", table.getAsString("key"));
+
+            MVStore store = table.getStore();
+            Assert.assertEquals(32, store.getCacheSize());
+            Assert.assertEquals(2000, store.getAutoCommitDelay());
+            Assert.assertEquals(4 * 1024, store.getPageSplitSize());
+            Assert.assertNotNull(table.getValueCacheStats());
+            Assert.assertFalse(kv.isGroupCommitEnabled());
+        }
+        // the memory mapped access needs the h2 jar: the plain file is used
+        Assert.assertTrue(file.exists());
+    }
+
+    @Test
+    public void bulkIngestProfile() {
+        try (SyncKV kv = SyncKV.builder().profile(SyncKVBuilder.Profile.BULK_INGEST).build()) {
+            Assert.assertTrue(kv.isGroupCommitEnabled());
+            kv.getTable("test").put("key", "value");
+            Assert.assertEquals("value", kv.getTable("test").getAsString("key"));
+            Assert.assertNull(kv.getTable("test").getValueCacheStats());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidOption() {
+        SyncKV.builder().syncPeriod(0, TimeUnit.SECONDS);
+    }
+}
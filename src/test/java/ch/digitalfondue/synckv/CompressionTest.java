@@ -0,0 +1,73 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+
+public class CompressionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String payload(int i) {
+        StringBuilder sb = new StringBuilder("{\"id\": " + i + ", \"items\": [");
+        for (int j = 0; j < 200; j++) {
+            sb.append("{\"name\": \"item").append(j).append("\", \"enabled\": true}, ");
+        }
+        return sb.append("]}").toString();
+    }
+
+    @Test
+    public void valuesAreCompressedAboveThreshold() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("docs");
+            table.enableCompression("deflate", 512);
+
+            table.put("big", payload(1));
+            table.put("small", "small value");
+
+            Assert.assertEquals(payload(1), table.getAsString("big"));
+            Assert.assertEquals("small value", table.getAsString("small"));
+
+            CompressionStats stats = table.getCompressionStats();
+            Assert.assertEquals(1, stats.getEncodedValueCount());
+            Assert.assertEquals(1, stats.getPlainValueCount());
+            Assert.assertTrue(stats.toString(), stats.getRatio() > 5);
+
+            // the compressed bytes are what is replicated: the receiver store them as they are
+            SyncKVTable replica = kv.getTable("replica");
+            for (Map.Entry<byte[], byte[]> e : table.dumpTable()) {
+                replica.addRawKV(e.getKey(), e.getValue());
+            }
+            Assert.assertEquals(payload(1), replica.getAsString("big"));
+            Assert.assertEquals(payload(1), new String(replica.entries().next().getValue()));
+            Assert.assertEquals(payload(1), new String(replica.scanPrefix("big").next().getValue()));
+            Assert.assertEquals(1, replica.getCompressionStats().getEncodedValueCount());
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("docs");
+            table.put("big2", payload(2));
+            Assert.assertEquals(1, table.getCompressionStats().getEncodedValueCount());
+            Assert.assertEquals(payload(1), table.getAsString("big"));
+
+            table.disableCompression();
+            table.put("big3", payload(3));
+            Assert.assertEquals(1, table.getCompressionStats().getPlainValueCount());
+            Assert.assertEquals(payload(3), table.getAsString("big3"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCodec() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.getTable("docs").enableCompression("unknown", 10);
+        }
+    }
+}
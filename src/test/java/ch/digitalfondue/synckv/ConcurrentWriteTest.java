@@ -0,0 +1,52 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ConcurrentWriteTest {
+
+    @Test
+    public void newestVersionWinsWithConcurrentWriters() throws Exception {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable source = kv.getTable("source");
+            for (int i = 0; i < 2000; i++) {
+                source.put("key" + (i % 300), "value" + i);
+            }
+
+            // the same versions applied by many threads in random order must give the same table
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(source.dumpTable());
+            Collections.shuffle(entries);
+            SyncKVTable copy = kv.getTable("copy");
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int offset = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = offset; i < entries.size(); i += 8) {
+                        copy.addRawKV(entries.get(i).getKey(), entries.get(i).getValue());
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            executor.shutdown();
+
+            Assert.assertEquals(300, copy.count());
+            Assert.assertEquals(source.getTableStats().hash, copy.getTableStats().hash);
+            Assert.assertEquals(source.getTreeSync().exportLeafStructureOnly(), copy.getTreeSync().exportLeafStructureOnly());
+            for (int i = 0; i < 300; i++) {
+                Assert.assertEquals(source.getAsString("key" + i), copy.getAsString("key" + i));
+            }
+        }
+    }
+}
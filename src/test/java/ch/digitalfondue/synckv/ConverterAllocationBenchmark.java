@@ -0,0 +1,62 @@
+package ch.digitalfondue.synckv;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated per put+get conversion of a structured value: plain data streams, the stream based converter
+ * adapted by {@link SyncKVStructuredTable.StreamConverterAdapter}, and a {@link SyncKVStructuredTable.BufferConverter}.
+ */
+public class ConverterAllocationBenchmark {
+
+    private static final int ITERATIONS = 400_000;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StructuredTableTest.Attendee attendee = new StructuredTableTest.Attendee("firstname", "lastname", "firstname.lastname@example.com");
+        SyncKVStructuredTable.DataConverter<StructuredTableTest.Attendee> adapter = new SyncKVStructuredTable.DataConverter<>(new SyncKVStructuredTable.StreamConverterAdapter<>(StructuredTableTest::from, StructuredTableTest::to));
+        SyncKVStructuredTable.DataConverter<StructuredTableTest.Attendee> buffer = new SyncKVStructuredTable.DataConverter<>(StructuredTableTest.BUFFER_CONVERTER);
+
+        long streams = allocatedPerOperation(bean, attendee, ConverterAllocationBenchmark::streamsRoundTrip, ITERATIONS);
+        long adapted = allocatedPerOperation(bean, attendee, a -> adapter.from(adapter.to(a)), ITERATIONS);
+        long buffered = allocatedPerOperation(bean, attendee, a -> buffer.from(buffer.to(a)), ITERATIONS);
+
+        System.out.println("bytes allocated per put+get conversion: streams " + streams + ", adapted streams " + adapted + ", buffer " + buffered);
+    }
+
+    private interface Conversion {
+        StructuredTableTest.Attendee apply(StructuredTableTest.Attendee a) throws IOException;
+    }
+
+    private static StructuredTableTest.Attendee streamsRoundTrip(StructuredTableTest.Attendee a) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream daos = new DataOutputStream(baos)) {
+            StructuredTableTest.to(a, daos);
+        }
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            return StructuredTableTest.from(dis);
+        }
+    }
+
+    private static long allocatedPerOperation(com.sun.management.ThreadMXBean bean, StructuredTableTest.Attendee attendee, Conversion conversion, int iterations) {
+        try {
+            long checksum = 0;
+            // warmup
+            for (int i = 0; i < iterations; i++) {
+                checksum += conversion.apply(attendee) != null ? 1 : 0;
+            }
+            long threadId = Thread.currentThread().getId();
+            long before = bean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                checksum += conversion.apply(attendee) != null ? 1 : 0;
+            }
+            long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+            if (checksum != 2L * iterations) {
+                throw new IllegalStateException("unexpected conversion result");
+            }
+            return allocated / iterations;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package ch.digitalfondue.synckv;
 
+import org.h2.mvstore.MVStore;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.util.Iterator;
 
 public class GCTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void kvCleanupTest() {
 
@@ -71,4 +78,62 @@ public class GCTest {
             Assert.assertEquals(2, table.dumpTable().size());
         }
     }
+
+    @Test
+    public void incrementalCompactionTest() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 10; i++) {
+                table.put("static" + i, "value");
+            }
+            for (int i = 0; i < 5; i++) {
+                table.put("updated" + i, "v1");
+                table.put("updated" + i, "v2");
+                table.put("updated" + i, "v3");
+            }
+            Assert.assertEquals(5, table.dirtyKeyCount());
+            Assert.assertEquals(25, table.dumpTable().size());
+
+            // partial run, the remaining keys are kept in the log
+            Assert.assertEquals(2, table.compactOldVersions(2));
+            Assert.assertEquals(3, table.dirtyKeyCount());
+            Assert.assertEquals(21, table.dumpTable().size());
+
+            Assert.assertEquals(3, table.compactOldVersions(100));
+            Assert.assertEquals(0, table.compactOldVersions(100));
+            Assert.assertEquals(0, table.dirtyKeyCount());
+            Assert.assertEquals(15, table.dumpTable().size());
+            Assert.assertEquals(15, table.count());
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals("v3", table.getAsString("updated" + i));
+            }
+        }
+    }
+
+    @Test
+    public void dirtyLogIsRebuiltOnOpen() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            table.put("key", "value1");
+            table.put("key", "value2");
+            table.put("key2", "value3");
+        }
+
+        //simulate a store created before the dirty key log
+        MVStore store = new MVStore.Builder().fileName(fileName).open();
+        store.removeMap(SyncKVTable.INTERNAL_MAP_PREFIX + "dirty.test");
+        store.close();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            Assert.assertEquals(1, table.dirtyKeyCount());
+            Assert.assertEquals(1, table.compactOldVersions(100));
+            Assert.assertEquals(2, table.dumpTable().size());
+            Assert.assertEquals("value2", table.getAsString("key"));
+        }
+    }
 }
@@ -0,0 +1,84 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitTest {
+
+    @Test
+    public void concurrentPutsAreCommittedInBatch() throws InterruptedException {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.enableGroupCommit(64, 5, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(kv.isGroupCommitEnabled());
+            SyncKVTable table = kv.getTable("test");
+
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int threadId = t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        table.put(threadId + "-" + i, "value" + i);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Assert.assertEquals(800, table.count());
+            Assert.assertEquals("value42", table.getAsString("3-42"));
+
+            CompletableFuture<Boolean> res = table.putAsync("async", "value".getBytes(StandardCharsets.UTF_8));
+            Assert.assertTrue(res.join());
+            Assert.assertEquals("value", table.getAsString("async"));
+
+            kv.disableGroupCommit();
+            Assert.assertFalse(kv.isGroupCommitEnabled());
+            table.put("sync", "value");
+            Assert.assertEquals("value", table.getAsString("sync"));
+        }
+    }
+
+    @Test
+    public void writeSubmittedToAClosedWriterIsApplied() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            // as a put that read the writer just before the group commit was disabled
+            GroupCommitWriter writer = new GroupCommitWriter(64, 5, TimeUnit.MILLISECONDS);
+            writer.close();
+            KV raw = new KV(KeyCodec.encode("late", System.currentTimeMillis(), 0, 1), "value".getBytes(StandardCharsets.UTF_8));
+            Assert.assertTrue(writer.submit(table, Collections.singletonList(raw)).join());
+            Assert.assertEquals("value", table.getAsString("late"));
+        }
+    }
+
+    @Test
+    public void failingWriteDoesNotFailTheBatch() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            // the three writes are in the same batch
+            try (GroupCommitWriter writer = new GroupCommitWriter(3, 1, TimeUnit.SECONDS)) {
+                long now = System.currentTimeMillis();
+                CompletableFuture<Boolean> first = writer.submit(table, Collections.singletonList(new KV(KeyCodec.encode("first", now, 0, 1), "value".getBytes(StandardCharsets.UTF_8))));
+                CompletableFuture<Boolean> failing = writer.submit(table, Collections.singletonList(new KV(KeyCodec.encode("failing", now, 0, 1), null)));
+                CompletableFuture<Boolean> last = writer.submit(table, Collections.singletonList(new KV(KeyCodec.encode("last", now, 0, 1), "value".getBytes(StandardCharsets.UTF_8))));
+
+                Assert.assertTrue(first.join());
+                Assert.assertTrue(last.join());
+                Assert.assertTrue(failing.isCompletedExceptionally());
+            }
+            Assert.assertEquals("value", table.getAsString("first"));
+            Assert.assertEquals("value", table.getAsString("last"));
+            Assert.assertNull(table.get("failing", false).k);
+        }
+    }
+}
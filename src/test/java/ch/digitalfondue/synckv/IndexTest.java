@@ -0,0 +1,116 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+public class IndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void to(String[] attendee, DataOutputStream daos) throws IOException {
+        daos.writeUTF(attendee[0]);
+        daos.writeUTF(attendee[1]);
+    }
+
+    private static String[] from(DataInputStream dis) throws IOException {
+        return new String[]{dis.readUTF(), dis.readUTF()};
+    }
+
+    private static SyncKVStructuredTable<String[]> attendees(SyncKV kv, String name) {
+        SyncKVStructuredTable<String[]> table = kv.getTable(name).toStructured(String[].class, IndexTest::from, IndexTest::to);
+        table.declareIndex("byEvent", a -> a[1]);
+        return table;
+    }
+
+    private static Set<String> keys(SyncKVStructuredTable<String[]> table, String event) {
+        return table.findBy("byEvent", event).map(Map.Entry::getKey).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private static void awaitReady(SyncKVStructuredTable<String[]> table) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!table.isIndexReady("byEvent") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(table.isIndexReady("byEvent"));
+    }
+
+    @Test
+    public void indexIsMaintained() throws InterruptedException {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVStructuredTable<String[]> plain = kv.getTable("attendee").toStructured(String[].class, IndexTest::from, IndexTest::to);
+            Map<String, String[]> values = new HashMap<>();
+            for (int i = 0; i < 25_000; i++) {
+                values.put("a" + i, new String[]{"name" + i, "event" + (i % 100)});
+            }
+            plain.putAll(values);
+
+            // declared on an existing table: built in background, the lookups scan the table meanwhile
+            SyncKVStructuredTable<String[]> table = attendees(kv, "attendee");
+            Assert.assertEquals(250, table.findBy("byEvent", "event7").count());
+            awaitReady(table);
+            Assert.assertEquals(250, table.findBy("byEvent", "event7").count());
+
+            // local puts
+            table.put("a7", new String[]{"name7", "event1000"});
+            table.put("b1", new String[]{"b1", "event1000"});
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1")), keys(table, "event1000"));
+            Assert.assertEquals(249, table.findBy("byEvent", "event7").count());
+
+            // version compaction does not change the latest values
+            kv.getTable("attendee").compactOldVersions(Integer.MAX_VALUE);
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1")), keys(table, "event1000"));
+
+            // replicated and bulk imported versions
+            SyncKVStructuredTable<String[]> replica = attendees(kv, "replica");
+            awaitReady(replica);
+            for (Map.Entry<byte[], byte[]> e : kv.getTable("attendee").dumpTable()) {
+                kv.getTable("replica").addRawKV(e.getKey(), e.getValue());
+            }
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1")), keys(replica, "event1000"));
+            Assert.assertEquals(249, replica.findBy("byEvent", "event7").count());
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            // not written since the clean shutdown: ready without any scan
+            SyncKVStructuredTable<String[]> replica = attendees(kv, "replica");
+            Assert.assertTrue(replica.isIndexReady("byEvent"));
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1")), keys(replica, "event1000"));
+
+            // written before the index is declared again
+            SyncKVStructuredTable<String[]> plain = kv.getTable("attendee").toStructured(String[].class, IndexTest::from, IndexTest::to);
+            plain.put("c1", new String[]{"c1", "event1000"});
+
+            SyncKVStructuredTable<String[]> table = attendees(kv, "attendee");
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1", "c1")), keys(table, "event1000"));
+            awaitReady(table);
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("a7", "b1", "c1")), keys(table, "event1000"));
+            Assert.assertEquals(0, table.findBy("byEvent", "event").count());
+
+            table.removeIndex("byEvent");
+            Assert.assertFalse(table.isIndexReady("byEvent"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void undeclaredIndex() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.getTable("attendee").toStructured(String[].class, IndexTest::from, IndexTest::to).findBy("byEvent", "event1");
+        }
+    }
+}
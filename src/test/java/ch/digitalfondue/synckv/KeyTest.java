@@ -1,16 +1,27 @@
 package ch.digitalfondue.synckv;
 
 import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class KeyTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void keyTest() {
 
@@ -43,4 +54,157 @@ public class KeyTest {
             //
         }
     }
+
+    @Test
+    public void utf8EncodingTest() {
+        String[] keys = {"", "key", "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00 emoji", "unpaired \ud83d surrogate", "\ude00"};
+        for (String key : keys) {
+            byte[] expected = key.getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = KeyCodec.encode(key, 1, 2, 3);
+            Assert.assertEquals(expected.length, KeyCodec.logicalLength(encoded));
+            Assert.assertArrayEquals(expected, SyncKVTable.logicalKey(encoded));
+        }
+    }
+
+    // the comparators of the maps, as called by MVMap on each lookup, must not allocate: raw keys for the versions
+    // map, and a KeySlice seek key against the stored logical keys for the latest map
+    @Test
+    public void comparatorDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+        byte[] a = KeyCodec.encode("a-quite-long-key-with-a-common-prefix-1", 1000, 2000, 3000);
+        byte[] b = KeyCodec.encode("a-quite-long-key-with-a-common-prefix-1", 1000, 2000, 3001);
+        byte[] c = KeyCodec.encode("a-quite-long-key-with-a-common-prefix-2", 1000, 2000, 3000);
+        byte[] storedLogicalKey = SyncKVTable.logicalKey(c);
+
+        int iterations = 200_000;
+        long checksum = 0;
+        // warmup
+        for (int i = 0; i < iterations; i++) {
+            checksum += compareWithMapComparators(a, b, c, storedLogicalKey);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            checksum += compareWithMapComparators(a, b, c, storedLogicalKey);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        Assert.assertNotEquals(0, checksum);
+        // less than one byte per iteration: nothing is allocated per comparison
+        Assert.assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    private static int compareWithMapComparators(byte[] a, byte[] b, byte[] c, byte[] storedLogicalKey) {
+        int res = SyncKVTable.TABLE_KEY_TYPE.compare(a, b) + SyncKVTable.TABLE_KEY_TYPE.compare(b, c);
+        KeyCodec.KeySlice fromRawKey = KeyCodec.logicalKeySlice(a);
+        res += SyncKVTable.LOGICAL_KEY_TYPE.compare(fromRawKey, storedLogicalKey);
+        res += SyncKVTable.LOGICAL_KEY_TYPE.compare(storedLogicalKey, KeyCodec.logicalKeySlice("a-quite-long-key"));
+        return res;
+    }
+
+    @Test
+    public void legacyAndHybridClockVersionsSideBySide() {
+        long now = System.currentTimeMillis();
+        byte[] legacy = KeyCodec.encodeLegacy("key", now, 123, 456);
+        byte[] hlc = KeyCodec.encode("key", now, 0, 1);
+        byte[] hlcOlder = KeyCodec.encode("key", now - 1, 5, 1);
+        byte[] legacyNewer = KeyCodec.encodeLegacy("key", now + 1, 0, 0);
+
+        Assert.assertEquals(legacy.length - 7, hlc.length);
+        Assert.assertEquals("key", KeyCodec.logicalKeyString(legacy));
+        Assert.assertEquals("key", KeyCodec.logicalKeyString(hlc));
+        Assert.assertTrue(KeyCodec.sameLogicalKey(legacy, hlc));
+        Assert.assertEquals(now, KeyCodec.physicalTime(legacy));
+        Assert.assertEquals(now, KeyCodec.physicalTime(hlc));
+
+        // same millisecond: the current format wins
+        Assert.assertTrue(KeyCodec.compare(hlc, legacy) > 0);
+        Assert.assertTrue(KeyCodec.compare(hlcOlder, legacy) < 0);
+        Assert.assertTrue(KeyCodec.compare(legacyNewer, hlc) > 0);
+
+        // the bounds enclose the versions of both formats
+        byte[] logical = "key".getBytes(StandardCharsets.UTF_8);
+        for (byte[] version : new byte[][]{legacy, hlc, hlcOlder, legacyNewer}) {
+            Assert.assertTrue(KeyCodec.compare(KeyCodec.floorKey(logical), version) < 0);
+            Assert.assertTrue(KeyCodec.compare(KeyCodec.ceilKey(logical), version) > 0);
+        }
+
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            table.addRawKV(legacy, "legacy".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals("legacy", table.getAsString("key"));
+            table.put("key", "current");
+            Assert.assertEquals("current", table.getAsString("key"));
+            Assert.assertEquals(1, table.count());
+            Assert.assertEquals(2, table.dumpTable().size());
+            Assert.assertEquals(1, table.compactOldVersions(10));
+            Assert.assertEquals(1, table.dumpTable().size());
+        }
+    }
+
+    @Test
+    public void hybridLogicalClockFollowsRemoteTimestamps() {
+        HybridLogicalClock clock = new HybridLogicalClock(1);
+        long first = clock.now();
+        Assert.assertTrue(clock.now() > first);
+
+        // a node with a clock 10 seconds ahead: the next local versions must still be newer
+        long remote = HybridLogicalClock.timestamp(System.currentTimeMillis() + 10_000, 3);
+        clock.observe(remote);
+        Assert.assertTrue(clock.now() > remote);
+
+        // too far in the future, refused
+        long farAway = HybridLogicalClock.timestamp(System.currentTimeMillis() + 3_600_000, 0);
+        Assert.assertFalse(clock.observe(farAway));
+        Assert.assertTrue(clock.now() < farAway);
+
+        // a stored version is followed in any case
+        Assert.assertTrue(clock.nowAfter(farAway) > farAway);
+    }
+
+    @Test
+    public void localWriteAfterRestartWinsOverStoredVersions() throws Exception {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        long ahead = System.currentTimeMillis() + 30_000;
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            // written by a node with a clock 30 seconds ahead
+            Assert.assertTrue(kv.getTable("test").addRawKV(KeyCodec.encode("key", ahead, 0, 1), "remote".getBytes(StandardCharsets.UTF_8)));
+            kv.getTable("test").addRawKV(KeyCodec.encodeLegacy("legacy", ahead, 0, 0), "remote".getBytes(StandardCharsets.UTF_8));
+        }
+
+        // the clock of the new instance is behind the stored versions
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            Assert.assertTrue(table.put("key", "local"));
+            Assert.assertEquals("local", table.getAsString("key"));
+            Assert.assertTrue(table.put("legacy", "local"));
+            Assert.assertEquals("local", table.getAsString("legacy"));
+
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("key", "all".getBytes(StandardCharsets.UTF_8));
+            Assert.assertTrue(table.putAll(values));
+            Assert.assertEquals("all", table.getAsString("key"));
+        }
+    }
+
+    @Test
+    public void versionTooFarInTheFutureIsRefused() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            table.put("key", "local");
+            byte[] farAway = KeyCodec.encode("key", System.currentTimeMillis() + 3_600_000, 0, 1);
+            Assert.assertFalse(table.addRawKV(farAway, "remote".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertEquals(0, table.bulkLoad(Collections.singletonList(new KV(farAway, "remote".getBytes(StandardCharsets.UTF_8))).iterator()));
+            Assert.assertEquals("local", table.getAsString("key"));
+
+            Assert.assertTrue(table.put("key", "updated"));
+            Assert.assertEquals("updated", table.getAsString("key"));
+        }
+    }
 }
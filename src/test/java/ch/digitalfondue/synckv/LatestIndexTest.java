@@ -0,0 +1,63 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVStore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+public class LatestIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void latestVersionIsReturned() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 100; i++) {
+                table.put("key", "value" + i);
+            }
+            table.put("key1", "other");
+            Assert.assertEquals("value99", table.getAsString("key"));
+            Assert.assertEquals("other", table.getAsString("key1"));
+            Assert.assertNull(table.getAsString("ke"));
+
+            //an older version must not replace the newest one
+            byte[] oldest = table.dumpTable().get(0).getKey();
+            table.addRawKV(oldest, "old".getBytes());
+            Assert.assertEquals("value99", table.getAsString("key"));
+
+            Assert.assertEquals(Collections.singleton("test"), kv.getTableNames());
+        }
+    }
+
+    @Test
+    public void latestIndexIsRebuiltOnOpen() throws IOException {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            table.put("key", "value1");
+            table.put("key", "value2");
+            table.put("key2", "value3");
+        }
+
+        //simulate a store created before the latest version index
+        MVStore store = new MVStore.Builder().fileName(fileName).open();
+        store.removeMap(SyncKVTable.INTERNAL_MAP_PREFIX + "latest.test");
+        store.close();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            Assert.assertEquals("value2", table.getAsString("key"));
+            Assert.assertEquals("value3", table.getAsString("key2"));
+            Assert.assertEquals(2, table.count());
+        }
+    }
+}
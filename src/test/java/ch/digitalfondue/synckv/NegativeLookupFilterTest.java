@@ -0,0 +1,55 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class NegativeLookupFilterTest {
+
+    private static byte[] rawKey(String key) {
+        return KeyCodec.encode(key, System.currentTimeMillis(), 0, 0);
+    }
+
+    @Test
+    public void absentOnlyWhenAllMembersContributed() {
+        NegativeLookupFilter node1 = new NegativeLookupFilter(1000, 0.01, 0);
+        NegativeLookupFilter node2 = new NegativeLookupFilter(1000, 0.01, 0);
+        NegativeLookupFilter node3 = new NegativeLookupFilter(1000, 0.01, 0);
+        node1.add(rawKey("a"));
+        node2.add(rawKey("b"));
+        node3.add(rawKey("c"));
+
+        String view = "view-1";
+
+        // node1 does not know anything about node2 and node3
+        Assert.assertFalse(node1.isKnownAbsent("missing", Arrays.asList("node2", "node3"), view));
+
+        // node2 has received the filter of node3, then node1 receive the one of node2
+        Assert.assertTrue(node2.merge(node3.export("node3", view), view));
+        Assert.assertTrue(node1.merge(node2.export("node2", view), view));
+
+        Assert.assertTrue(node1.isKnownAbsent("missing", Arrays.asList("node2", "node3"), view));
+        Assert.assertFalse(node1.isKnownAbsent("b", Arrays.asList("node2", "node3"), view));
+        Assert.assertFalse(node1.isKnownAbsent("c", Arrays.asList("node2", "node3"), view));
+
+        // a new view: the contributions must be collected again
+        Assert.assertFalse(node1.isKnownAbsent("missing", Arrays.asList("node2", "node3"), "view-2"));
+
+        // incompatible filters are ignored
+        Assert.assertFalse(node1.merge(new NegativeLookupFilter(10, 0.5, 0).export("node4", view), view));
+    }
+
+    @Test
+    public void negativeCache() {
+        NegativeLookupFilter filter = new NegativeLookupFilter(1000, 0.01, TimeUnit.MINUTES.toNanos(1));
+        Assert.assertFalse(filter.isKnownAbsent("key", Collections.singletonList("node2"), "view"));
+        filter.markAbsent("key");
+        Assert.assertTrue(filter.isKnownAbsent("key", Collections.singletonList("node2"), "view"));
+        // the key has been received
+        filter.add(rawKey("key"));
+        Assert.assertFalse(filter.isKnownAbsent("key", Collections.singletonList("node2"), "view"));
+    }
+}
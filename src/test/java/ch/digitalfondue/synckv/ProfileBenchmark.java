@@ -0,0 +1,67 @@
+package ch.digitalfondue.synckv;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compare the builder profiles on a file store: ingestion of 200k key/values with concurrent asynchronous puts,
+ * then 200k random reads, and the heap used after a full gc.
+ */
+public class ProfileBenchmark {
+
+    private static final int KEYS = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] value = new byte[256];
+        new Random(42).nextBytes(value);
+        List<SyncKVBuilder.Profile> profiles = new ArrayList<>();
+        profiles.add(null);
+        for (SyncKVBuilder.Profile profile : SyncKVBuilder.Profile.values()) {
+            profiles.add(profile);
+        }
+        for (SyncKVBuilder.Profile profile : profiles) {
+            File dir = Files.createTempDirectory("synckv-bench").toFile();
+            SyncKVBuilder builder = SyncKV.builder().fileName(new File(dir, "db").getAbsolutePath());
+            if (profile != null) {
+                builder.profile(profile);
+            }
+            try (SyncKV kv = builder.build()) {
+                kv.disableCompacting(true);
+                SyncKVTable table = kv.getTable("bench");
+
+                long start = System.nanoTime();
+                List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+                for (int i = 0; i < KEYS; i++) {
+                    pending.add(table.putAsync("key" + i, value));
+                    if (pending.size() == 1000) {
+                        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+                        pending.clear();
+                    }
+                }
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+                long ingestNanos = System.nanoTime() - start;
+
+                Random random = new Random(1);
+                // warmup of the caches
+                for (int i = 0; i < KEYS; i++) {
+                    table.get("key" + random.nextInt(KEYS));
+                }
+                start = System.nanoTime();
+                for (int i = 0; i < KEYS; i++) {
+                    table.get("key" + random.nextInt(KEYS));
+                }
+                long readNanos = System.nanoTime() - start;
+
+                System.gc();
+                Runtime runtime = Runtime.getRuntime();
+                long heapMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+                System.out.println(String.format("%-18s ingest: %8d puts/s, random reads: %8d gets/s, heap: %4d MB",
+                        profile != null ? profile : "DEFAULT", KEYS * 1_000_000_000L / ingestNanos, KEYS * 1_000_000_000L / readNanos, heapMB));
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class ScanTest {
+
+    private static List<String> collect(Iterator<Map.Entry<String, byte[]>> it) {
+        List<String> res = new ArrayList<>();
+        it.forEachRemaining(e -> res.add(e.getKey() + "=" + new String(e.getValue(), StandardCharsets.UTF_8)));
+        return res;
+    }
+
+    @Test
+    public void scanTest() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            table.put("a", "1");
+            table.put("user:1", "old");
+            table.put("user:1", "2");
+            table.put("user:2", "3");
+            table.put("user:20", "4");
+            table.put("users", "5");
+            table.put("z", "6");
+
+            Assert.assertEquals(6, collect(table.scan(null, null)).size());
+            Assert.assertEquals(Arrays.asList("user:1=2", "user:2=3", "user:20=4"), collect(table.scanPrefix("user:")));
+            Assert.assertEquals(Arrays.asList("user:2=3", "user:20=4", "users=5"), collect(table.scan("user:2", "z")));
+            Assert.assertEquals(Arrays.asList("a=1"), collect(table.scan(null, "user:1")));
+            Assert.assertTrue(collect(table.scanPrefix("missing")).isEmpty());
+
+            Assert.assertEquals(Arrays.asList("a=1", "user:1=2", "user:2=3", "user:20=4", "users=5", "z=6"), collect(table.entries()));
+            Assert.assertEquals(7, table.dumpTable().size());
+        }
+    }
+}
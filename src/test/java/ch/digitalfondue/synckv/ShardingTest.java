@@ -0,0 +1,109 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVStore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+public class ShardingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void singleFileStoreIsMigrated() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            kv.getTable("user").put("key", "value1");
+            kv.getTable("user").put("key", "value2");
+            kv.getTable("session").put("key", "value3");
+            kv.getTable("log").put("key", "value4");
+        }
+
+        StoreSharding sharding = StoreSharding.perTable().group("users", "user", "session");
+        try (SyncKV kv = new SyncKV(fileName, null, null, null, sharding)) {
+            Assert.assertEquals(new HashSet<>(Arrays.asList("user", "session", "log")), kv.getTableNames());
+            Assert.assertTrue(kv.hasTable("log"));
+            Assert.assertEquals("value2", kv.getTable("user").getAsString("key"));
+            Assert.assertEquals("value3", kv.getTable("session").getAsString("key"));
+            Assert.assertEquals("value4", kv.getTable("log").getAsString("key"));
+            Assert.assertEquals(1, kv.getTable("user").count());
+
+            kv.getTable("metrics").put("key", "value5");
+            Assert.assertTrue(kv.hasTable("metrics"));
+        }
+
+        Assert.assertTrue(new File(fileName + ".shard.users").exists());
+        Assert.assertTrue(new File(fileName + ".shard.log").exists());
+        Assert.assertTrue(new File(fileName + ".shard.metrics").exists());
+
+        // the main store keep only the catalog
+        MVStore main = new MVStore.Builder().fileName(fileName).readOnly().open();
+        Assert.assertEquals(Collections.singleton(SyncKVTable.INTERNAL_MAP_PREFIX + "shards"), main.getMapNames());
+        main.close();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null, StoreSharding.perTable())) {
+            // the existing tables stay in their group
+            Assert.assertEquals("value3", kv.getTable("session").getAsString("key"));
+            Assert.assertEquals("value5", kv.getTable("metrics").getAsString("key"));
+            Assert.assertEquals(4, kv.getTableNames().size());
+        }
+    }
+
+    @Test
+    public void settingsAreMigrated() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable user = kv.getTable("user");
+            user.put("admin:1", "value");
+            user.put("guest:1", "value");
+            user.declarePrefixCounter("admin:");
+            user.enableCompression("deflate", 16);
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null, StoreSharding.perTable())) {
+            SyncKVTable user = kv.getTable("user");
+            Assert.assertEquals(1, user.count("admin:"));
+            user.put("admin:2", String.join("", Collections.nCopies(100, "compressible")));
+            Assert.assertEquals(2, user.count("admin:"));
+            Assert.assertEquals(1, user.getCompressionStats().getEncodedValueCount());
+        }
+
+        // the prefix counter is still declared, not computed by a scan
+        MVStore shard = new MVStore.Builder().fileName(fileName + ".shard.user").readOnly().open();
+        Assert.assertEquals(2L, shard.openMap(SyncKVTable.INTERNAL_MAP_PREFIX + "meta.user").get("prefix.admin:"));
+        shard.close();
+    }
+
+    @Test
+    public void timeToLiveIsMigrated() throws InterruptedException {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.getTable("session").setTimeToLive(1, TimeUnit.HOURS);
+            kv.getTable("session").put("key", "value");
+            kv.getTable("short").setTimeToLive(2, TimeUnit.SECONDS);
+            kv.getTable("short").put("key", "value");
+        }
+        long written = System.currentTimeMillis();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null, StoreSharding.perTable())) {
+            SyncKVTable session = kv.getTable("session");
+            Assert.assertEquals(1, session.getTimeToLive(TimeUnit.HOURS));
+            Assert.assertEquals("value", session.getAsString("key"));
+
+            // the keys written before the migration are still reaped
+            Assert.assertEquals(1, kv.getTable("short").count());
+            Thread.sleep(Math.max(0, written + 2100 - System.currentTimeMillis()));
+            Assert.assertEquals(1, kv.getTable("short").reapExpired(10));
+            Assert.assertEquals(0, kv.getTable("short").count());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pointInTimeViewAcrossTables() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable users = kv.getTable("user");
+            SyncKVTable sessions = kv.getTable("session");
+            Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 10_000; i++) {
+                values.put("key" + i, ("v1-" + i).getBytes());
+            }
+            users.putAll(values);
+            sessions.put("s1", "user1");
+
+            try (SyncKVSnapshot snapshot = kv.snapshot("user", "session")) {
+                // rewrite everything, with commits and compaction of the old versions
+                for (int i = 0; i < 10_000; i++) {
+                    values.put("key" + i, ("v2-" + i).getBytes());
+                }
+                users.putAll(values);
+                users.put("new", "value");
+                sessions.put("s1", "user2");
+                users.compactOldVersions(Integer.MAX_VALUE);
+                Assert.assertEquals(0, users.dirtyKeyCount());
+
+                SyncKVTableSnapshot userSnapshot = snapshot.getTable("user");
+                Assert.assertEquals(10_000, userSnapshot.count());
+                Assert.assertNull(userSnapshot.get("new"));
+                Assert.assertEquals("v1-42", userSnapshot.getAsString("key42"));
+                Assert.assertEquals("user1", snapshot.getTable("session").getAsString("s1"));
+
+                int count = 0;
+                for (Map.Entry<String, byte[]> e : (Iterable<Map.Entry<String, byte[]>>) userSnapshot::entries) {
+                    Assert.assertTrue(new String(e.getValue()).startsWith("v1-"));
+                    count++;
+                }
+                Assert.assertEquals(10_000, count);
+                Assert.assertEquals(1111, countOf(userSnapshot.scanPrefix("key1")));
+                Assert.assertEquals(2, countOf(userSnapshot.scan("key1000", "key1002")));
+
+                Assert.assertEquals("v2-42", users.getAsString("key42"));
+                Assert.assertEquals(10_001, users.count());
+            }
+        }
+    }
+
+    @Test
+    public void closedSnapshot() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.getTable("user").put("key", "value");
+            SyncKVSnapshot snapshot = kv.getTable("user").snapshot();
+            Assert.assertEquals("value", snapshot.getTable("user").getAsString("key"));
+            snapshot.close();
+            try {
+                snapshot.getTable("user").get("key");
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void structuredStream() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVStructuredTable<String> table = kv.getTable("user").toStructured(String.class, dis -> dis.readUTF(), (s, daos) -> daos.writeUTF(s));
+            table.put("a", "1");
+            table.put("b", "2");
+            try (SyncKVSnapshot snapshot = kv.snapshot()) {
+                table.put("a", "3");
+                table.put("c", "4");
+                Assert.assertEquals("1", table.get("a", snapshot));
+                Assert.assertEquals(2, table.stream(snapshot).count());
+                Assert.assertEquals(3, table.stream().count());
+            }
+        }
+    }
+
+    private static int countOf(Iterator<?> it) {
+        List<Object> res = new ArrayList<>();
+        it.forEachRemaining(res::add);
+        return res.size();
+    }
+
+    @Test
+    public void exportAndImport() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("backup.snapshot");
+        try (SyncKV source = new SyncKV(null, null, null, null)) {
+            Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 20_000; i++) {
+                values.put("key" + i, ("v1-" + i).getBytes());
+            }
+            source.getTable("user").putAll(values);
+            source.getTable("user").put("key1", "v2-1");
+            source.getTable("session").put("s1", "user1");
+            source.getTable("ignored").put("k", "v");
+
+            // the writes continue during the export
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    source.getTable("user").put("later" + i, "value");
+                }
+            });
+            writer.start();
+            long exported = source.exportSnapshot(file, "user", "session");
+            writer.join();
+            Assert.assertTrue(exported >= 20_001 && exported <= 22_001);
+        }
+
+        try (SyncKV target = new SyncKV(null, null, null, null)) {
+            // a newer local version is kept
+            target.getTable("session").put("s1", "user2");
+            long added = target.importSnapshot(file);
+            Assert.assertTrue(added >= 20_000);
+            Assert.assertEquals("v2-1", target.getTable("user").getAsString("key1"));
+            Assert.assertEquals("v1-19999", target.getTable("user").getAsString("key19999"));
+            Assert.assertEquals("user2", target.getTable("session").getAsString("s1"));
+            Assert.assertFalse(target.hasTable("ignored"));
+            Assert.assertEquals(target.getTable("user").count(), countOf(target.getTable("user").entries()));
+
+            // importing again adds nothing
+            Assert.assertEquals(0, target.importSnapshot(file));
+        }
+    }
+
+    @Test
+    public void corruptedFileIsNotImported() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("backup.snapshot");
+        try (SyncKV source = new SyncKV(null, null, null, null)) {
+            for (int i = 0; i < 100; i++) {
+                source.getTable("user").put("key" + i, "value" + i);
+            }
+            Assert.assertEquals(100, source.exportSnapshot(file));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        }
+        try (SyncKV target = new SyncKV(null, null, null, null)) {
+            try {
+                target.importSnapshot(file);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertFalse(target.hasTable("user"));
+        }
+    }
+
+    @Test
+    public void snapshotOfManyTables() throws Exception {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            for (int i = 0; i < 500; i++) {
+                kv.getTable("table" + i).put("key", "value" + i);
+            }
+            // the stripes of all the tables are held at the same time, without nesting
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread thread = new Thread(null, () -> {
+                try (SyncKVSnapshot snapshot = kv.snapshot()) {
+                    Assert.assertEquals(500, snapshot.getTableNames().size());
+                    Assert.assertEquals("value499", snapshot.getTable("table499").getAsString("key"));
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }, "snapshot", 256 * 1024);
+            thread.start();
+            thread.join();
+            Assert.assertNull(failure.get());
+
+            // the writes are possible again
+            kv.getTable("table0").put("key", "updated");
+            Assert.assertEquals("updated", kv.getTable("table0").getAsString("key"));
+        }
+    }
+}
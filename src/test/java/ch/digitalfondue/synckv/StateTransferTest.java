@@ -0,0 +1,146 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StateTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stateIsStreamedIntoTheTables() throws Exception {
+        try (SyncKV source = new SyncKV(null, null, null, null); SyncKV target = new SyncKV(null, null, null, null)) {
+            Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 150_000; i++) {
+                values.put("key" + i, ("value" + i).getBytes());
+            }
+            source.getTable("user").putAll(values);
+            source.getTable("user").put("key1", "updated");
+            source.getTable("session").put("s1", "user1");
+
+            // as the state protocol, the provider and the receiver run concurrently on a bounded pipe
+            PipedInputStream in = new PipedInputStream(64 * 1024);
+            PipedOutputStream out = new PipedOutputStream(in);
+            CompletableFuture<Void> provider = CompletableFuture.runAsync(() -> {
+                try (OutputStream o = out) {
+                    new StateTransferHandler(source).getState(o);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            new StateTransferHandler(target).setState(in);
+            provider.get();
+
+            Assert.assertEquals(source.getTableNames(), target.getTableNames());
+            Assert.assertEquals(source.getTable("user").count(), target.getTable("user").count());
+            Assert.assertEquals("updated", target.getTable("user").getAsString("key1"));
+            Assert.assertEquals("value149999", target.getTable("user").getAsString("key149999"));
+            Assert.assertEquals("user1", target.getTable("session").getAsString("s1"));
+
+            // the versions are kept: a newer local write wins over the transferred state
+            source.getTable("session").put("s1", "user2");
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            new StateTransferHandler(source).getState(state);
+            target.getTable("session").put("s1", "user3");
+            new StateTransferHandler(target).setState(new ByteArrayInputStream(state.toByteArray()));
+            Assert.assertEquals("user3", target.getTable("session").getAsString("s1"));
+        }
+    }
+
+    @Test
+    public void truncatedStateKeepsTheLoadedTables() throws Exception {
+        try (SyncKV source = new SyncKV(null, null, null, null); SyncKV target = new SyncKV(null, null, null, null)) {
+            source.getTable("a").put("k", "v");
+            for (int i = 0; i < 100; i++) {
+                source.getTable("b").put("key" + i, "value" + i);
+            }
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            new StateTransferHandler(source).getState(state);
+            byte[] truncated = new byte[state.size() / 2];
+            System.arraycopy(state.toByteArray(), 0, truncated, 0, truncated.length);
+            try {
+                new StateTransferHandler(target).setState(new ByteArrayInputStream(truncated));
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals("v", target.getTable("a").getAsString("k"));
+        }
+    }
+
+    @Test
+    public void stateIsSentWithoutOpeningTheTables() throws Exception {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV source = new SyncKV(fileName, null, null, null)) {
+            source.getTable("user").put("key", "value");
+            source.getTable("session").setTimeToLive(1, TimeUnit.MILLISECONDS);
+            source.getTable("session").put("s1", "user1");
+        }
+        Thread.sleep(5);
+
+        try (SyncKV source = new SyncKV(fileName, null, null, null); SyncKV target = new SyncKV(null, null, null, null)) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            new StateTransferHandler(source).getState(state);
+            Assert.assertNull(source.getOpenedTable("user"));
+            Assert.assertNull(source.getOpenedTable("session"));
+
+            new StateTransferHandler(target).setState(new ByteArrayInputStream(state.toByteArray()));
+            Assert.assertEquals("value", target.getTable("user").getAsString("key"));
+            // the time to live is read from the table settings
+            Assert.assertEquals(0, target.getTable("session").count());
+        }
+    }
+
+    @Test
+    public void slowStreamDoesNotBlockTheWriters() throws Exception {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVTable table = kv.getTable("user");
+            CountDownLatch reading = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            // as a network stream waiting for the next bytes
+            Iterator<KV> slow = new Iterator<KV>() {
+                private boolean sent;
+
+                @Override
+                public boolean hasNext() {
+                    if (sent) {
+                        reading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return false;
+                    }
+                    return true;
+                }
+
+                @Override
+                public KV next() {
+                    sent = true;
+                    return new KV(KeyCodec.encode("loaded", System.currentTimeMillis(), 0, 1), "value".getBytes());
+                }
+            };
+            CompletableFuture<Long> load = CompletableFuture.supplyAsync(() -> table.bulkLoad(slow));
+            Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<Boolean> put = CompletableFuture.supplyAsync(() -> table.put("key", "value"));
+            Assert.assertTrue(put.get(10, TimeUnit.SECONDS));
+
+            release.countDown();
+            Assert.assertEquals(1L, (long) load.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals("value", table.getAsString("loaded"));
+        }
+    }
+}
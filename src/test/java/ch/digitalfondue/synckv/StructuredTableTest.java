@@ -4,7 +4,11 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 public class StructuredTableTest {
 
@@ -20,16 +24,28 @@ public class StructuredTableTest {
         }
     }
 
-    private static void to(Attendee attendee, DataOutputStream daos) throws IOException {
+    static void to(Attendee attendee, DataOutputStream daos) throws IOException {
         daos.writeUTF(attendee.firstname);
         daos.writeUTF(attendee.lastname);
         daos.writeUTF(attendee.email);
     }
 
-    private static Attendee from(DataInputStream dis) throws IOException {
+    static Attendee from(DataInputStream dis) throws IOException {
         return new Attendee(dis.readUTF(), dis.readUTF(), dis.readUTF());
     }
 
+    static final SyncKVStructuredTable.BufferConverter<Attendee> BUFFER_CONVERTER = new SyncKVStructuredTable.BufferConverter<Attendee>() {
+        @Override
+        public Attendee read(ByteBuffer buffer) {
+            return new Attendee(ValueWriter.getUTF(buffer), ValueWriter.getUTF(buffer), ValueWriter.getUTF(buffer));
+        }
+
+        @Override
+        public void write(Attendee value, ValueWriter writer) {
+            writer.putUTF(value.firstname).putUTF(value.lastname).putUTF(value.email);
+        }
+    };
+
     @Test
     public void sampleWorkflowTest() {
         try (SyncKV kv = new SyncKV(null, null, null, null)) {
@@ -57,7 +73,111 @@ public class StructuredTableTest {
             Assert.assertEquals("1l", a.lastname);
             Assert.assertEquals("1@", a.email);
 
+            Assert.assertEquals(1, attendeeTable.scanPrefix("test2").count());
+            Assert.assertEquals("2ff", attendeeTable.scanPrefix("test2").findFirst().get().getValue().firstname);
+            Assert.assertEquals(2, attendeeTable.scan("test1", null).count());
+
+
+        }
+    }
+
+    @Test
+    public void putAllTest() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+
+            SyncKVStructuredTable<Attendee> attendeeTable = kv.getTable("attendee").toStructured(Attendee.class, StructuredTableTest::from, StructuredTableTest::to);
+            attendeeTable.put("test1", new Attendee("1f", "1l", "1@"));
 
+            Map<String, Attendee> values = new HashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                values.put("test" + i, new Attendee(i + "f", i + "l", i + "@"));
+            }
+            attendeeTable.putAll(values);
+
+            Assert.assertEquals(1000, attendeeTable.count());
+            Assert.assertEquals("1f", attendeeTable.get("test1").firstname);
+            Assert.assertEquals("999l", attendeeTable.get("test999").lastname);
         }
     }
+
+    @Test
+    public void parallelStreamTest() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVStructuredTable<Attendee> attendeeTable = kv.getTable("attendee").toStructured(Attendee.class, StructuredTableTest::from, StructuredTableTest::to);
+
+            Map<String, Attendee> values = new HashMap<>();
+            for (int i = 0; i < 5000; i++) {
+                values.put("test" + i, new Attendee(i + "f", i + "l", i + "@"));
+            }
+            attendeeTable.putAll(values);
+            // add many versions, so the split boundaries may fall between the versions of a key
+            for (int i = 0; i < 5000; i += 3) {
+                attendeeTable.put("test" + i, new Attendee(i + "ff", i + "l", i + "@"));
+            }
+
+            Spliterator<Map.Entry<String, byte[]>> spliterator = kv.getTable("attendee").spliterator();
+            Assert.assertNotNull(spliterator.trySplit());
+
+            Map<String, String> res = attendeeTable.parallelStream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().firstname));
+            Assert.assertEquals(5000, res.size());
+            Assert.assertEquals("0ff", res.get("test0"));
+            Assert.assertEquals("1f", res.get("test1"));
+            Assert.assertEquals("4998ff", res.get("test4998"));
+            Assert.assertEquals(5000, attendeeTable.stream().count());
+        }
+    }
+
+    @Test
+    public void bufferConverterTest() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            SyncKVStructuredTable<Attendee> streamTable = kv.getTable("attendee").toStructured(Attendee.class, StructuredTableTest::from, StructuredTableTest::to);
+            SyncKVStructuredTable<Attendee> bufferTable = kv.getTable("attendee").toStructured(Attendee.class, BUFFER_CONVERTER);
+
+            streamTable.put("test1", new Attendee("Zoë", "Ünal", "\u20ac@"));
+            bufferTable.put("test2", new Attendee("Zoë", "Ünal", "\u20ac@"));
+
+            // same format: the values can be read by both converters
+            Assert.assertArrayEquals(kv.getTable("attendee").get("test1"), kv.getTable("attendee").get("test2"));
+            Assert.assertEquals("Ünal", bufferTable.get("test1").lastname);
+            Assert.assertEquals("\u20ac@", streamTable.get("test2").email);
+
+            Map<String, Attendee> values = new HashMap<>();
+            for (int i = 0; i < 100; i++) {
+                values.put("test" + i, new Attendee(i + "f", i + "l", i + "@"));
+            }
+            bufferTable.putAll(values);
+            Assert.assertEquals(100, bufferTable.stream().count());
+            Assert.assertEquals("99l", streamTable.get("test99").lastname);
+        }
+    }
+
+    // the numbers of allocated bytes are measured by ConverterAllocationBenchmark
+    @Test
+    public void streamAndBufferConvertersAreInterchangeable() {
+        SyncKVStructuredTable.DataConverter<Attendee> streams = new SyncKVStructuredTable.DataConverter<>(new SyncKVStructuredTable.StreamConverterAdapter<>(StructuredTableTest::from, StructuredTableTest::to));
+        SyncKVStructuredTable.DataConverter<Attendee> buffer = new SyncKVStructuredTable.DataConverter<>(BUFFER_CONVERTER);
+
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 5_000; i++) {
+            longValue.append("\u20ac").append(i);
+        }
+        Attendee[] attendees = {
+                new Attendee("firstname", "lastname", "firstname.lastname@example.com"),
+                new Attendee("Zoë", "Ünal", "\u20ac@"),
+                new Attendee("", "", ""),
+                new Attendee(longValue.toString(), "\uD83D\uDE00", longValue.toString())
+        };
+        for (Attendee attendee : attendees) {
+            Assert.assertArrayEquals(streams.to(attendee), buffer.to(attendee));
+            assertSameAttendee(attendee, buffer.from(streams.to(attendee)));
+            assertSameAttendee(attendee, streams.from(buffer.to(attendee)));
+        }
+    }
+
+    private static void assertSameAttendee(Attendee expected, Attendee actual) {
+        Assert.assertEquals(expected.firstname, actual.firstname);
+        Assert.assertEquals(expected.lastname, actual.lastname);
+        Assert.assertEquals(expected.email, actual.email);
+    }
 }
@@ -55,7 +55,7 @@ public class SyncKVTestGC {
         StringBuilder sb = new StringBuilder();
         for (Map.Entry<byte[], byte[]> kv : table.dumpTable()) {
             byte[] k = kv.getKey();
-            String res = new String(k, 0, k.length - SyncKVTable.METADATA_LENGTH, StandardCharsets.UTF_8);
+            String res = KeyCodec.logicalKeyString(k);
             sb.append("{").append(res).append(", ").append(new String(table.getRawKV(k), StandardCharsets.UTF_8)).append("} ");
         }
         return sb.toString();
@@ -0,0 +1,239 @@
+package ch.digitalfondue.synckv;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class TableStatsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void digestIsOrderIndependent() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable source = kv.getTable("source");
+            for (int i = 0; i < 100; i++) {
+                source.put("key" + (i % 40), "value" + i);
+            }
+            TableStats sourceStats = source.getTableStats();
+            Assert.assertEquals(40, sourceStats.keyCount);
+
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(source.dumpTable());
+            Collections.shuffle(entries);
+            SyncKVTable copy = kv.getTable("copy");
+            for (Map.Entry<byte[], byte[]> e : entries) {
+                copy.addRawKV(e.getKey(), e.getValue());
+            }
+
+            TableStats copyStats = copy.getTableStats();
+            Assert.assertEquals(sourceStats.keyCount, copyStats.keyCount);
+            Assert.assertEquals(sourceStats.hash, copyStats.hash);
+
+            // removing the old versions does not change the stats
+            kv.disableCompacting(false);
+            new OldKVCollector(kv).run();
+            Assert.assertEquals(sourceStats.hash, source.getTableStats().hash);
+            Assert.assertEquals(40, source.getTableStats().keyCount);
+
+            source.put("key0", "new value");
+            Assert.assertNotEquals(sourceStats.hash, source.getTableStats().hash);
+            Assert.assertEquals(40, source.getTableStats().keyCount);
+        }
+    }
+
+    @Test
+    public void statsArePersisted() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        TableStats stats;
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 10; i++) {
+                table.put("key" + i, "value" + i);
+            }
+            stats = table.getTableStats();
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            TableStats reopened = kv.getTable("test").getTableStats();
+            Assert.assertEquals(stats.keyCount, reopened.keyCount);
+            Assert.assertEquals(stats.hash, reopened.hash);
+        }
+    }
+
+    @Test
+    public void prefixCounters() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            table.put("user:1", "a");
+            table.put("user:2", "b");
+            table.put("group:1", "c");
+
+            table.declarePrefixCounter("user:");
+            Assert.assertEquals(2, table.count("user:"));
+            Assert.assertEquals(1, table.count("group:"));
+            Assert.assertEquals(3, table.count());
+
+            table.put("user:3", "d");
+            table.put("user:3", "e");
+            table.put("user:", "f");
+            Assert.assertEquals(4, table.count("user:"));
+            Assert.assertEquals(5, table.count());
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            Assert.assertEquals(4, table.count("user:"));
+            table.put("user:4", "g");
+            Assert.assertEquals(5, table.count("user:"));
+            table.removePrefixCounter("user:");
+            Assert.assertEquals(5, table.count("user:"));
+        }
+    }
+
+    @Test
+    public void restartIsLazyAndScanFree() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        TableStats stats;
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 100_000; i++) {
+                values.put("key" + i, ("value" + i).getBytes());
+            }
+            table.putAll(values);
+            table.put("key1", "updated");
+            kv.getTable("other").put("key", "value");
+            stats = table.getTableStats();
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            Map<String, TableStats> metadata = kv.getTableMetadataForSync();
+            // read from the persisted aggregates: the tables are not opened, so not scanned
+            Assert.assertNull(kv.getOpenedTable("test"));
+
+            Assert.assertEquals(stats.keyCount, metadata.get("test").keyCount);
+            Assert.assertEquals(stats.hash, metadata.get("test").hash);
+            Assert.assertEquals(1, metadata.get("other").keyCount);
+
+            // nothing to compact: the tables are not opened
+            new OldKVCollector(kv).run();
+            Assert.assertNull(kv.getOpenedTable("test"));
+            Assert.assertNull(kv.getOpenedTable("other"));
+
+            Assert.assertEquals(stats.hash, kv.getTable("test").getTableStats().hash);
+        }
+    }
+
+    @Test
+    public void uncleanShutdownRebuildsStats() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        TableStats stats;
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 10; i++) {
+                table.put("key" + i, "value" + i);
+            }
+            stats = table.getTableStats();
+        }
+
+        // as after a crash: no marker, and a digest behind the data
+        MVStore store = new MVStore.Builder().fileName(fileName).open();
+        MVMap<String, Object> meta = store.openMap(SyncKVTable.INTERNAL_MAP_PREFIX + "meta.test");
+        meta.remove("clean.shutdown");
+        meta.put("stats.digest", 42L);
+        store.close();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            TableStats fromMetadata = kv.getTableMetadataForSync().get("test");
+            Assert.assertEquals(stats.hash, fromMetadata.hash);
+            Assert.assertEquals(stats.keyCount, fromMetadata.keyCount);
+            Assert.assertNotNull(kv.getOpenedTable("test"));
+        }
+    }
+
+    @Test
+    public void uncleanShutdownReconcilesTheLatestVersionIndex() {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 10; i++) {
+                table.put("key" + i, "value" + i);
+            }
+        }
+
+        // as after a crash between the write of the table and the write of the index
+        MVStore store = new MVStore.Builder().fileName(fileName).open();
+        MVMap<byte[], byte[]> raw = SyncKVTable.openRawTable(store, "test");
+        raw.put(KeyCodec.encode("key1", System.currentTimeMillis() + 1000, 0, 1), "torn".getBytes());
+        for (byte[] key : new ArrayList<>(raw.keySet())) {
+            if ("key2".equals(KeyCodec.logicalKeyString(key))) {
+                raw.remove(key);
+            }
+        }
+        store.<String, Object>openMap(SyncKVTable.INTERNAL_MAP_PREFIX + "meta.test").remove("clean.shutdown");
+        store.close();
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            Assert.assertEquals("torn", table.getAsString("key1"));
+            Assert.assertNull(table.get("key2", false).k);
+            Assert.assertEquals(9, table.count());
+            Assert.assertEquals(1, table.dirtyKeyCount());
+            Assert.assertEquals(1, table.compactOldVersions(10));
+
+            // the digest is rebuilt from the reconciled index
+            long digest = 0;
+            for (Iterator<byte[]> it = table.rawKeys(); it.hasNext(); ) {
+                digest += MurmurHash.hash64(it.next());
+            }
+            Assert.assertEquals(digest, table.getTableStats().hash);
+        }
+    }
+
+    @Test
+    public void maintenanceOpensOnlyTheTablesWithPendingWork() throws Exception {
+        String fileName = new File(folder.getRoot(), "db").getAbsolutePath();
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            kv.getTable("living").setTimeToLive(1, TimeUnit.HOURS);
+            kv.getTable("living").put("key", "value");
+            kv.getTable("expiring").setTimeToLive(100, TimeUnit.MILLISECONDS);
+            kv.getTable("expiring").put("key", "value");
+            kv.disableCompacting(true);
+            kv.getTable("dirty").put("key", "value");
+            kv.getTable("dirty").put("key", "updated");
+        }
+
+        try (SyncKV kv = new SyncKV(fileName, null, null, null)) {
+            // disabled: nothing is opened
+            kv.disableCompacting(true);
+            new OldKVCollector(kv).run();
+            Assert.assertNull(kv.getOpenedTable("dirty"));
+            Assert.assertNull(kv.getOpenedTable("expiring"));
+
+            kv.disableCompacting(false);
+            Thread.sleep(150);
+            new OldKVCollector(kv).run();
+            // no key has expired yet
+            Assert.assertNull(kv.getOpenedTable("living"));
+            Assert.assertEquals(0, kv.getOpenedTable("expiring").count());
+            Assert.assertEquals(0, kv.getOpenedTable("dirty").dirtyKeyCount());
+        }
+    }
+}
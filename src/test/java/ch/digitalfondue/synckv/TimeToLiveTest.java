@@ -0,0 +1,64 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TimeToLiveTest {
+
+    @Test
+    public void expiredKeysAreHiddenAndReaped() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("session");
+            table.setTimeToLive(1, TimeUnit.HOURS);
+            Assert.assertEquals(1, table.getTimeToLive(TimeUnit.HOURS));
+
+            long twoHoursAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+            table.put("fresh", "value");
+            // versions written two hours ago by a lagging node are not resurrected
+            table.addRawKV(KeyCodec.encode("old", twoHoursAgo, 0, 1), "value".getBytes());
+            Assert.assertNull(table.getAsString("old"));
+            Assert.assertEquals(1, table.count());
+
+            // enable the time to live on existing data
+            SyncKVTable other = kv.getTable("other");
+            other.addRawKV(KeyCodec.encode("old", twoHoursAgo, 0, 1), "value".getBytes());
+            other.addRawKV(KeyCodec.encode("old", twoHoursAgo, 1, 1), "value2".getBytes());
+            other.put("fresh", "value");
+            other.setTimeToLive(1, TimeUnit.HOURS);
+
+            Assert.assertNull(other.getAsString("old"));
+            Assert.assertEquals("value", other.getAsString("fresh"));
+            List<String> keys = new ArrayList<>();
+            other.keys().forEachRemaining(keys::add);
+            Assert.assertEquals(Collections.singletonList("fresh"), keys);
+            Assert.assertEquals("fresh", other.scanPrefix("").next().getKey());
+            Assert.assertFalse(other.scan("o", null).hasNext());
+            Assert.assertEquals("fresh", other.entries().next().getKey());
+
+            Assert.assertEquals(2, other.count());
+            Assert.assertEquals(1, other.reapExpired(100));
+            Assert.assertEquals(0, other.reapExpired(100));
+            Assert.assertEquals(1, other.count());
+            Assert.assertEquals(1, other.dumpTable().size());
+
+            // a newer version is not expired
+            other.setTimeToLive(0, TimeUnit.MILLISECONDS);
+            other.addRawKV(KeyCodec.encode("old", twoHoursAgo, 0, 1), "value".getBytes());
+            Assert.assertEquals("value", other.getAsString("old"));
+            Assert.assertEquals(Arrays.asList("fresh", "old"), collect(other));
+        }
+    }
+
+    private static List<String> collect(SyncKVTable table) {
+        List<String> keys = new ArrayList<>();
+        table.keys().forEachRemaining(keys::add);
+        return keys;
+    }
+}
@@ -42,4 +42,23 @@ public class TreeSyncTest {
 
 
     }
+
+    @Test
+    public void testMaintainedTree() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            for (int i = 0; i < 500; i++) {
+                table.put("key" + (i % 200), "value" + i);
+            }
+
+            TreeSync scanned = new TreeSync(TreeSyncLeaves.DEPTH, TreeSyncLeaves.BREADTH);
+            table.rawKeys().forEachRemaining(scanned::add);
+
+            TreeSync maintained = table.getTreeSync();
+            Assert.assertEquals(200, maintained.getCount());
+            Assert.assertEquals(scanned.getCount(), maintained.getCount());
+            Assert.assertEquals(scanned.exportLeafStructureOnly(), maintained.exportLeafStructureOnly());
+        }
+    }
 }
@@ -0,0 +1,57 @@
+package ch.digitalfondue.synckv;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class ValueCacheTest {
+
+    @Test
+    public void cacheIsInvalidatedOnWrite() {
+        try (SyncKV kv = new SyncKV(null, null, null, null)) {
+            kv.disableCompacting(true);
+            SyncKVTable table = kv.getTable("test");
+            table.enableValueCache(1024 * 1024);
+
+            table.put("key", "value1");
+            Assert.assertEquals("value1", table.getAsString("key"));
+            Assert.assertEquals("value1", table.getAsString("key"));
+            Assert.assertEquals(1, table.getValueCacheStats().getHitCount());
+            Assert.assertEquals(1, table.getValueCacheStats().getMissCount());
+
+            table.put("key", "value2");
+            Assert.assertEquals("value2", table.getAsString("key"));
+
+            // replicated write
+            byte[] newerKey = KeyCodec.encode("key", System.currentTimeMillis() + 1000, 0, 0);
+            table.addRawKV(newerKey, "value3".getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals("value3", table.getAsString("key"));
+
+            // removal of the latest version
+            table.deleteRawKV(newerKey);
+            Assert.assertEquals("value2", table.getAsString("key"));
+        }
+    }
+
+    @Test
+    public void cacheIsBoundedAndScanResistant() {
+        ValueCache cache = new ValueCache(10 * 1024);
+        KV hot = new KV(new byte[20], new byte[100]);
+        cache.putIf("hot", hot, kv -> true);
+        Assert.assertSame(hot, cache.get("hot")); // promoted in the protected segment
+
+        for (int i = 0; i < 1000; i++) {
+            cache.putIf("scan" + i, new KV(new byte[20], new byte[100]), kv -> true);
+        }
+
+        ValueCacheStats stats = cache.stats();
+        Assert.assertTrue(stats.getSizeInBytes() <= 10 * 1024);
+        Assert.assertTrue(stats.getEvictionCount() > 0);
+        Assert.assertSame(hot, cache.get("hot"));
+        Assert.assertNull(cache.get("scan0"));
+
+        cache.putIf("stale", new KV(new byte[20], new byte[100]), kv -> false);
+        Assert.assertNull(cache.get("stale"));
+    }
+}
@@ -0,0 +1,58 @@
+package ch.digitalfondue.synckv;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of concurrent local puts on a single table, from 1 to 32 writer threads.
+ * Each thread writes its own keys, so the writes only contend on the table itself.
+ */
+public class WriteContentionBenchmark {
+
+    private static final long DURATION_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] value = "hello world".getBytes(StandardCharsets.UTF_8);
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            try (SyncKV kv = new SyncKV(null, null, null, null)) {
+                kv.disableCompacting(true);
+                SyncKVTable table = kv.getTable("bench");
+
+                CountDownLatch start = new CountDownLatch(1);
+                long[] counts = new long[threads];
+                List<Thread> writers = new ArrayList<>();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+                for (int t = 0; t < threads; t++) {
+                    int id = t;
+                    Thread writer = new Thread(() -> {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        long count = 0;
+                        while (System.nanoTime() - deadline < 0) {
+                            table.put("t" + id + "-" + (count % 10_000), value);
+                            count++;
+                        }
+                        counts[id] = count;
+                    });
+                    writer.start();
+                    writers.add(writer);
+                }
+                start.countDown();
+                for (Thread writer : writers) {
+                    writer.join();
+                }
+                long total = 0;
+                for (long c : counts) {
+                    total += c;
+                }
+                System.out.println(String.format("%2d threads: %,10d puts/s", threads, total * 1000 / DURATION_MILLIS));
+            }
+        }
+    }
+}